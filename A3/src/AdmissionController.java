@@ -0,0 +1,196 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how much work the server takes on at once. A new connection gets a
+ * handshake slot if one is free, otherwise it waits in a bounded queue, and if
+ * the queue is full it is turned away so that the client can retry later.
+ * Once its key is agreed a connection gives up the handshake slot and, when it
+ * knows the file size, needs a transfer slot and enough of the in-flight byte
+ * budget to buffer the file. Transfers wait for these instead of failing, so a
+ * burst only slows clients down through TCP backpressure.
+ *
+ * Every connection is greeted with GREETING_OK when it is allowed to start, or
+ * with GREETING_RETRY and a delay in milliseconds when it is turned away.
+ */
+public class AdmissionController {
+	public static final String GREETING_OK = "OK";
+	public static final String GREETING_RETRY = "RETRY ";
+
+	// delay suggested to clients that are turned away
+	public static final long RETRY_AFTER_MILLIS = 1000;
+
+	// a client silent this long during its key exchange gives up its slot
+	public static final int HANDSHAKE_TIMEOUT_MILLIS = 30000;
+
+	public static final int DEFAULT_MAX_HANDSHAKES = 2 * Runtime.getRuntime().availableProcessors();
+	public static final int DEFAULT_MAX_TRANSFERS = 64;
+	public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 256L * 1024 * 1024;
+	public static final int DEFAULT_QUEUE_LENGTH = 128;
+
+	private final Semaphore handshakes;
+	private final Semaphore transfers;
+	private final long maxInFlightBytes;
+	private final ArrayBlockingQueue<Runnable> waiting;
+
+	private long inFlightBytes; // guarded by this
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Constructor, with the default limits.
+	 */
+	public AdmissionController() {
+		this(DEFAULT_MAX_HANDSHAKES, DEFAULT_MAX_TRANSFERS, DEFAULT_MAX_IN_FLIGHT_BYTES, DEFAULT_QUEUE_LENGTH);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxHandshakes
+	 *            key exchanges running at once
+	 * @param maxTransfers
+	 *            file transfers running at once
+	 * @param maxInFlightBytes
+	 *            bytes all running transfers may buffer in memory together
+	 * @param queueLength
+	 *            connections that may wait for a handshake slot
+	 */
+	public AdmissionController(int maxHandshakes, int maxTransfers, long maxInFlightBytes, int queueLength) {
+		if (maxHandshakes < 1 || maxTransfers < 1 || maxInFlightBytes < 1 || queueLength < 1) {
+			throw new IllegalArgumentException("Admission limits must be positive");
+		}
+		this.handshakes = new Semaphore(maxHandshakes);
+		this.transfers = new Semaphore(maxTransfers);
+		this.maxInFlightBytes = maxInFlightBytes;
+		this.waiting = new ArrayBlockingQueue<Runnable>(queueLength);
+	}
+
+	/**
+	 * Admits a new connection. If a handshake slot is free the connection is
+	 * started at once, otherwise it is queued and started by whichever
+	 * connection next calls endHandshake(). The starter must call
+	 * endHandshake() exactly once after it runs.
+	 *
+	 * @param start
+	 *            starts the connection's handler, must not block
+	 * @return false if the queue is full and the client should retry later
+	 */
+	public boolean admit(Runnable start) {
+		if (handshakes.tryAcquire()) {
+			start.run();
+			return true;
+		}
+		if (!waiting.offer(start)) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		// a slot may have been freed between tryAcquire and offer
+		startWaiting();
+		return true;
+	}
+
+	/**
+	 * Releases a handshake slot and starts the next waiting connection.
+	 */
+	public void endHandshake() {
+		handshakes.release();
+		startWaiting();
+	}
+
+	private void startWaiting() {
+		while (!waiting.isEmpty() && handshakes.tryAcquire()) {
+			Runnable next = waiting.poll();
+			if (next == null) {
+				handshakes.release();
+				return;
+			}
+			next.run();
+		}
+	}
+
+	/**
+	 * Waits for a transfer slot and for room in the in-flight byte budget. A
+	 * transfer larger than the whole budget reserves the whole budget, so it
+	 * runs alone rather than never.
+	 *
+	 * @param bytes
+	 *            bytes the transfer buffers in memory
+	 * @return the reservation, to be passed to endTransfer()
+	 * @throws InterruptedException
+	 *             if interrupted while waiting, nothing is reserved then
+	 */
+	public long beginTransfer(long bytes) throws InterruptedException {
+		long reserve = Math.max(0, Math.min(bytes, maxInFlightBytes));
+		transfers.acquire();
+		try {
+			synchronized (this) {
+				while (inFlightBytes + reserve > maxInFlightBytes) {
+					wait();
+				}
+				inFlightBytes += reserve;
+			}
+		} catch (InterruptedException e) {
+			transfers.release();
+			throw e;
+		}
+		return reserve;
+	}
+
+	/**
+	 * Releases a transfer slot and its bytes.
+	 *
+	 * @param reserved
+	 *            the value returned by beginTransfer()
+	 */
+	public void endTransfer(long reserved) {
+		synchronized (this) {
+			inFlightBytes -= reserved;
+			notifyAll();
+		}
+		transfers.release();
+	}
+
+	/**
+	 * @return number of connections waiting for a handshake slot
+	 */
+	public int getWaiting() {
+		return waiting.size();
+	}
+
+	/**
+	 * @return bytes currently reserved by transfers
+	 */
+	public synchronized long getInFlightBytes() {
+		return inFlightBytes;
+	}
+
+	/**
+	 * @return number of connections turned away
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Parses a greeting.
+	 *
+	 * @param greeting
+	 *            the greeting received from the server
+	 * @return 0 if the client may go ahead, otherwise milliseconds to wait
+	 *         before retrying
+	 */
+	public static long retryDelay(String greeting) {
+		if (greeting.equals(GREETING_OK)) {
+			return 0;
+		}
+		if (greeting.startsWith(GREETING_RETRY)) {
+			try {
+				return Math.max(1, Long.parseLong(greeting.substring(GREETING_RETRY.length()).trim()));
+			} catch (NumberFormatException e) {
+				return RETRY_AFTER_MILLIS;
+			}
+		}
+		throw new IllegalArgumentException("Unexpected greeting from server: " + greeting);
+	}
+}
@@ -0,0 +1,574 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.AlgorithmParameters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Simple timing harness for the performance-sensitive parts of the protocol.
+ * Each benchmark warms up before it measures and prints the average time per
+ * operation.
+ *
+ * Usage: java Benchmark modpow [bits]
+ *        java Benchmark handshake [bits] [seconds] [expbits]
+ *        java Benchmark crypto
+ *        java Benchmark ctr [maxThreads] [maxMB]
+ *        java Benchmark loadserver port platform|virtual|nio
+ *        java Benchmark load host port clients kbytes pauseMs
+ *
+ * The two load commands form the connection-handling load test. loadserver
+ * runs a server that never shuts itself down and samples its memory and
+ * thread use; load runs many slow streaming uploaders against it.
+ */
+public class Benchmark {
+	private static final int WARMUP_ROUNDS = 200;
+	private static final int MEASURE_ROUNDS = 1000;
+
+	// the AES and GHASH intrinsics only kick in once bulk code is hot
+	private static final int BULK_WARMUP_ROUNDS = 5000;
+
+	// keeps results alive so the JIT cannot drop the measured work
+	private static volatile Object sink;
+
+	/**
+	 * A piece of work to be timed.
+	 */
+	interface Op {
+		void run(int i) throws Exception;
+	}
+
+	/**
+	 * Times an operation and prints the average cost.
+	 *
+	 * @param name
+	 *            label for the output
+	 * @param rounds
+	 *            number of measured calls
+	 * @param op
+	 *            the operation
+	 * @return average nanoseconds per call
+	 */
+	static double time(String name, int rounds, Op op) throws Exception {
+		for (int i = 0; i < Math.min(rounds, WARMUP_ROUNDS); i++) {
+			op.run(i);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			op.run(i);
+		}
+		double avg = (System.nanoTime() - start) / (double) rounds;
+		System.out.printf("%-40s %12.1f us/op%n", name, avg / 1000.0);
+		return avg;
+	}
+
+	/**
+	 * Fixed-base table against BigInteger.modPow for DH public keys.
+	 */
+	static void modPow(int bits) throws Exception {
+		Random rand = new Random(1);
+		System.out.println("Generating " + bits + "-bit group...");
+		final DHGroup group = DHGroup.generate(bits);
+		final BigInteger p = group.getP();
+		final BigInteger g = group.getG();
+		final BigInteger[] exps = new BigInteger[64];
+		for (int i = 0; i < exps.length; i++) {
+			exps[i] = new BigInteger(p.bitLength() - 1, rand);
+		}
+
+		time("BigInteger.modPow", MEASURE_ROUNDS, new Op() {
+			public void run(int i) {
+				sink = g.modPow(exps[i % exps.length], p);
+			}
+		});
+		for (int w = 3; w <= 7; w++) {
+			final FixedBaseExp table = new FixedBaseExp(g, p, p.bitLength(), w);
+			time("FixedBaseExp window " + w, MEASURE_ROUNDS, new Op() {
+				public void run(int i) {
+					sink = table.pow(exps[i % exps.length]);
+				}
+			});
+		}
+		time("FixedBaseExp.modPow (cached table)", MEASURE_ROUNDS, new Op() {
+			public void run(int i) {
+				sink = FixedBaseExp.modPow(g, exps[i % exps.length], p);
+			}
+		});
+		time("FixedBaseExp table build", 20, new Op() {
+			public void run(int i) {
+				sink = new FixedBaseExp(g, p, p.bitLength(), FixedBaseExp.DEFAULT_WINDOW);
+			}
+		});
+	}
+
+	/**
+	 * Makes the two ends of one key exchange, client first.
+	 */
+	interface Exchanges {
+		KeyExchange[] make() throws Exception;
+	}
+
+	/**
+	 * Handshakes per second for each key agreement mode: a client group of
+	 * the given size, fresh for every handshake as without a group pool and
+	 * reused as with one, each named group, and X25519. Only the key
+	 * agreement and key derivation are timed, both ends on this thread, with
+	 * the server's share of the time reported on its own. Named finite-field
+	 * groups are pinned as on a server, so their tables are in use once the
+	 * warmup is over. expBits sets short DH exponents, 0 for full length.
+	 */
+	static void handshake(final int bits, double seconds, int expBits) throws Exception {
+		ExponentPool.getShared().setShortBits(expBits);
+		System.out.printf("%-28s %12s %12s %10s%n", "mode", "handshakes/s", "server hs/s", "wire bytes");
+		final DHGroup pooled = DHGroup.generate(bits);
+		int groupBytes = pooled.getP().toByteArray().length + pooled.getG().toByteArray().length;
+		handshakes("dh-" + bits + " new group", Math.max(seconds, 5), new Exchanges() {
+			public KeyExchange[] make() {
+				DHGroup group = DHGroup.generate(bits);
+				return new KeyExchange[] { new DHKeyExchange(group), new DHKeyExchange(group) };
+			}
+		}, groupBytes);
+		handshakes("dh-" + bits + " pooled group", seconds, new Exchanges() {
+			public KeyExchange[] make() {
+				return new KeyExchange[] { new DHKeyExchange(pooled), new DHKeyExchange(pooled) };
+			}
+		}, groupBytes);
+		for (final String name : NamedGroups.names()) {
+			handshakes(name, seconds, new Exchanges() {
+				public KeyExchange[] make() {
+					return new KeyExchange[] { NamedGroups.keyExchange(name, false), NamedGroups.keyExchange(name, true) };
+				}
+			}, NamedGroups.requestMessage(name).length);
+		}
+	}
+
+	/**
+	 * Runs handshakes for the given time after a warmup of the same length
+	 * and prints the rates.
+	 *
+	 * @param groupBytes
+	 *            bytes the client sends to pick the group, counted with the
+	 *            public values as bytes on the wire
+	 */
+	static void handshakes(String name, double seconds, Exchanges exchanges, int groupBytes) throws Exception {
+		long wire = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			long end = System.nanoTime() + (long) (seconds * 1e9);
+			long start = System.nanoTime();
+			long serverNanos = 0;
+			int count = 0;
+			do {
+				KeyExchange[] pair = exchanges.make();
+				long t = System.nanoTime();
+				byte[] serverPublic = pair[1].publicValue();
+				serverNanos += System.nanoTime() - t;
+				byte[] clientPublic = pair[0].publicValue();
+				byte[] clientSecret = pair[0].agree(serverPublic);
+				t = System.nanoTime();
+				byte[] serverSecret = pair[1].agree(clientPublic);
+				sink = CryptoUtilities.key_from_seed(serverSecret);
+				serverNanos += System.nanoTime() - t;
+				sink = CryptoUtilities.key_from_seed(clientSecret);
+				if (!Arrays.equals(clientSecret, serverSecret)) {
+					throw new IllegalStateException(name + " sides disagree");
+				}
+				count++;
+				wire = groupBytes + clientPublic.length + serverPublic.length;
+			} while (System.nanoTime() < end);
+			if (pass == 1) {
+				double secs = (System.nanoTime() - start) / 1e9;
+				System.out.printf("%-28s %12.1f %12.1f %10d%n", name, count / secs, count / (serverNanos / 1e9), wire);
+			}
+		}
+	}
+
+	/**
+	 * Per-message cost of the small control messages (file name, size, ack),
+	 * with a fresh Cipher and Mac per call as CryptoUtilities used to do, and
+	 * with the per-thread CryptoContext.
+	 */
+	static void crypto() throws Exception {
+		final SecretKeySpec key = CryptoUtilities.key_from_seed("benchmark".getBytes());
+		final byte[][] messages = { "destination-file.txt".getBytes(), "1048576".getBytes(), "Passed".getBytes() };
+		int rounds = MEASURE_ROUNDS * 20;
+
+		time("legacy encrypt+decrypt", rounds, new Op() {
+			public void run(int i) throws Exception {
+				sink = legacyDecrypt(legacyEncrypt(messages[i % 3], key), key);
+			}
+		});
+		time("CryptoContext encrypt+decrypt", rounds, new Op() {
+			public void run(int i) {
+				sink = CryptoUtilities.decrypt(CryptoUtilities.encrypt(messages[i % 3], key), key);
+			}
+		});
+		time("legacy append_hash+verify_hash", rounds, new Op() {
+			public void run(int i) throws Exception {
+				Mac mac = Mac.getInstance("HmacSHA1");
+				mac.init(key);
+				byte[] m = mac.doFinal(messages[i % 3]);
+				mac = Mac.getInstance("HmacSHA1");
+				mac.init(key);
+				sink = Boolean.valueOf(Arrays.equals(m, mac.doFinal(messages[i % 3])));
+			}
+		});
+		time("CryptoContext append_hash+verify_hash", rounds, new Op() {
+			public void run(int i) {
+				sink = Boolean.valueOf(CryptoUtilities.verify_hash(CryptoUtilities.append_hash(messages[i % 3], key), key));
+			}
+		});
+		transport(key);
+	}
+
+	/**
+	 * Per-chunk cost of a streamed file in each cipher suite: AES-CBC with a
+	 * separate HMAC-SHA1 pass on both ends, against one AEAD pass.
+	 */
+	static void transport(final SecretKeySpec key) throws Exception {
+		final byte[] chunk = new byte[CryptoUtilities.STREAM_CHUNK_LEN];
+		new Random(1).nextBytes(chunk);
+		final byte[] plain = new byte[CryptoUtilities.STREAM_FRAME_LEN];
+		int rounds = MEASURE_ROUNDS;
+
+		final SecureChannel cbc = SecureChannel.legacy(key);
+		final Mac mac = Mac.getInstance("HmacSHA1");
+		mac.init(key);
+		bulk("AES-CBC + HMAC-SHA1 64 KB chunk", chunk.length, rounds, new Op() {
+			public void run(int i) {
+				mac.update(chunk);
+				byte[] frame = cbc.seal(chunk, 0, chunk.length);
+				int n = cbc.open(frame, frame.length, plain, true);
+				mac.update(plain, 0, n);
+				sink = mac.doFinal();
+			}
+		});
+
+		for (String suite : new String[] { SecureChannel.AES_GCM, SecureChannel.CHACHA20_POLY1305 }) {
+			if (!SecureChannel.isAvailable(suite)) {
+				System.out.println(suite + " not available");
+				continue;
+			}
+			final SecureChannel sender = SecureChannel.create(key, suite, true);
+			final SecureChannel receiver = SecureChannel.create(key, suite, false);
+			bulk(suite + " 64 KB chunk", chunk.length, rounds, new Op() {
+				public void run(int i) {
+					byte[] frame = sender.seal(chunk, 0, chunk.length);
+					sink = Integer.valueOf(receiver.open(frame, frame.length, plain, true));
+				}
+			});
+		}
+	}
+
+	/**
+	 * Times an operation on bytes bytes of data after a long warmup, and
+	 * prints its throughput as well.
+	 */
+	static double bulk(String name, int bytes, int rounds, Op op) throws Exception {
+		for (int i = 0; i < BULK_WARMUP_ROUNDS; i++) {
+			op.run(i);
+		}
+		double ns = time(name, rounds, op);
+		System.out.printf("%-40s %12.1f MB/s%n", "", bytes * 1e3 / ns);
+		return ns;
+	}
+
+	/**
+	 * Counter-mode engine throughput for thread counts from 1 to maxThreads
+	 * and payloads from 64 KB to maxMB, going through one reused window as a
+	 * transfer does. Only the encryption and MAC tree are timed, no I/O.
+	 */
+	static void ctr(int maxThreads, long maxMB) throws Exception {
+		SecretKeySpec key = CryptoUtilities.key_from_seed("benchmark".getBytes());
+		byte[] window = new byte[CtrEngine.WINDOW_LEN];
+		new Random(1).nextBytes(window);
+		System.out.println(Runtime.getRuntime().availableProcessors() + " cores available");
+
+		List<Long> sizes = new ArrayList<Long>();
+		for (long size = 64 * 1024; size <= maxMB * 1024 * 1024; size *= 16) {
+			sizes.add(size);
+		}
+		System.out.printf("%-8s", "threads");
+		for (long size : sizes) {
+			System.out.printf("%12s", size < 1024 * 1024 ? size / 1024 + " KB" : size / (1024 * 1024) + " MB");
+		}
+		System.out.println("   (MB/s)");
+
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			// warm up the intrinsics before the first row is measured
+			ctrPass(key, window, CtrEngine.WINDOW_LEN * 64L, pool);
+			for (int i = 0; i < WARMUP_ROUNDS * 10; i++) {
+				ctrPass(key, window, CtrEngine.SEGMENT_LEN, pool);
+			}
+			System.out.printf("%-8d", threads);
+			for (long size : sizes) {
+				// small payloads are repeated so that each cell runs for a while
+				long reps = Math.max(1, (256L * 1024 * 1024) / size);
+				long start = System.nanoTime();
+				for (long r = 0; r < reps; r++) {
+					sink = ctrPass(key, window, size, pool);
+				}
+				double secs = (System.nanoTime() - start) / 1e9;
+				System.out.printf("%12.1f", size * reps / 1e6 / secs);
+			}
+			System.out.println();
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Seals a payload of the given size window by window, and returns the root.
+	 */
+	static byte[] ctrPass(SecretKeySpec key, byte[] window, long size, ForkJoinPool pool) throws Exception {
+		CtrEngine engine = new CtrEngine(key, CtrEngine.newNonce(), size, pool);
+		for (long position = 0; position < size; position += window.length) {
+			engine.seal(window, (int) Math.min(window.length, size - position), position).get();
+		}
+		return engine.root();
+	}
+
+	/**
+	 * CryptoUtilities.encrypt() before CryptoContext.
+	 */
+	static byte[] legacyEncrypt(byte[] message, SecretKeySpec keySpec) throws Exception {
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(Cipher.ENCRYPT_MODE, keySpec);
+		byte[] cipherText = cipher.doFinal(message);
+		byte[] params = cipher.getParameters().getEncoded();
+		byte[] ret = new byte[cipherText.length + params.length];
+		System.arraycopy(cipherText, 0, ret, 0, cipherText.length);
+		System.arraycopy(params, 0, ret, cipherText.length, params.length);
+		return ret;
+	}
+
+	/**
+	 * CryptoUtilities.decrypt() before CryptoContext.
+	 */
+	static byte[] legacyDecrypt(byte[] decrypt, SecretKeySpec keySpec) throws Exception {
+		byte[] cipherText = Arrays.copyOf(decrypt, decrypt.length - CryptoUtilities.AES_PARAM_LEN);
+		AlgorithmParameters params = AlgorithmParameters.getInstance("AES");
+		params.init(Arrays.copyOfRange(decrypt, cipherText.length, decrypt.length));
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(Cipher.DECRYPT_MODE, keySpec, params);
+		return cipher.doFinal(cipherText);
+	}
+
+	/**
+	 * Runs a server for the load test, in one of the connection handling
+	 * modes, and prints its resource use once a second. Unlike the normal
+	 * server it keeps running after the first transfer.
+	 */
+	static void loadServer(int port, String mode) throws Exception {
+		final NioServer nio;
+		final Server server;
+		if (mode.equals("nio")) {
+			nio = new NioServer(port, false, NioServer.DEFAULT_LOOPS, Runtime.getRuntime().availableProcessors());
+			server = null;
+		} else {
+			nio = null;
+			server = new Server(port, false);
+			server.setMultiSession(true);
+			if (mode.equals("virtual")) {
+				server.setExecutor(Server.newVirtualThreadExecutor());
+			} else if (!mode.equals("platform")) {
+				printUsage();
+				return;
+			}
+		}
+
+		Thread sampler = new Thread(new Runnable() {
+			public void run() {
+				long baseline = residentBytes();
+				long peak = baseline;
+				int peakThreads = 0;
+				ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+				while (true) {
+					long rss = residentBytes();
+					peak = Math.max(peak, rss);
+					peakThreads = Math.max(peakThreads, threads.getThreadCount());
+					Runtime rt = Runtime.getRuntime();
+					System.out.printf("threads %5d (peak %5d)  rss %7.1f MB (peak +%7.1f MB)  heap %7.1f MB%s%n",
+							threads.getThreadCount(), peakThreads, rss / 1e6, (peak - baseline) / 1e6,
+							(rt.totalMemory() - rt.freeMemory()) / 1e6,
+							"  connections " + (nio != null ? nio.getActiveCount() : server.getActiveCount()));
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		});
+		sampler.setDaemon(true);
+		sampler.start();
+
+		if (nio != null) {
+			nio.listen();
+		} else {
+			server.listen();
+		}
+	}
+
+	/**
+	 * Resident set size of this process, or the used heap where /proc is not
+	 * available.
+	 */
+	static long residentBytes() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			}
+		} catch (IOException e) {
+			// not Linux
+		}
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * Load test client: opens all connections at once, each streams a file
+	 * with a pause after every chunk, and reports the throughput.
+	 */
+	static void load(final String host, final int port, int clients, int kbytes, final long pauseMs) throws Exception {
+		final byte[] data = new byte[kbytes * 1024];
+		new Random(1).nextBytes(data);
+		final DHGroup group = DHGroup.generate(256);
+		final String dir = System.getProperty("java.io.tmpdir");
+		final AtomicInteger passed = new AtomicInteger();
+		final AtomicInteger open = new AtomicInteger();
+		final AtomicInteger peakOpen = new AtomicInteger();
+
+		Thread[] threads = new Thread[clients];
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			final int id = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					String outfilename = new File(dir, "a3load-" + id + ".bin").getPath();
+					try {
+						Socket sock = new Socket(host, port);
+						int now = open.incrementAndGet();
+						int peak;
+						while (now > (peak = peakOpen.get()) && !peakOpen.compareAndSet(peak, now)) {
+							// retry until the peak is at least now
+						}
+						try {
+							if (slowUpload(sock, group, outfilename, data, pauseMs)) {
+								passed.incrementAndGet();
+							}
+						} finally {
+							open.decrementAndGet();
+							sock.close();
+						}
+					} catch (IOException e) {
+						System.out.println("Client " + id + ": " + e.getMessage());
+					}
+					new File(outfilename).delete();
+				}
+			}, "load-" + i);
+			threads[i].start();
+		}
+		for (int i = 0; i < clients; i++) {
+			threads[i].join();
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%d/%d transfers passed in %.2f s, peak %d open connections%n", passed.get(), clients, secs,
+				peakOpen.get());
+		System.out.printf("%.1f transfers/s, %.2f MB/s%n", passed.get() / secs, passed.get() * (double) data.length
+				/ 1e6 / secs);
+	}
+
+	/**
+	 * One slow uploader: DH handshake with a shared group, then the file in
+	 * streamed chunks with a pause before each one.
+	 */
+	static boolean slowUpload(Socket sock, DHGroup group, String outfilename, byte[] data, final long pauseMs)
+			throws IOException {
+		DataInputStream in = new DataInputStream(sock.getInputStream());
+		DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+
+		// a busy server counts as a failed upload
+		if (AdmissionController.retryDelay(new String(CryptoUtilities.receive(in))) != 0) {
+			return false;
+		}
+
+		BigInteger p = group.getP();
+		BigInteger a = PrimeUtil.getExponent(p.subtract(BigInteger.valueOf(2)));
+		CryptoUtilities.send(p.toByteArray(), out);
+		CryptoUtilities.send(group.getG().toByteArray(), out);
+		BigInteger pubKeyRec = new BigInteger(CryptoUtilities.receive(in));
+		CryptoUtilities.send(FixedBaseExp.modPow(group.getG(), a, p).toByteArray(), out);
+		SecretKeySpec key = CryptoUtilities.key_from_seed(pubKeyRec.modPow(a, p).toByteArray());
+
+		SecureChannel channel = SecureChannel.legacy(key);
+		channel.send(outfilename.getBytes(), out);
+		channel.send((CryptoUtilities.STREAM_HEADER + data.length).getBytes(), out);
+		InputStream slow = new FilterInputStream(new ByteArrayInputStream(data)) {
+			public int read(byte[] b, int off, int len) throws IOException {
+				try {
+					Thread.sleep(pauseMs);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				return super.read(b, off, Math.min(len, CryptoUtilities.STREAM_CHUNK_LEN));
+			}
+		};
+		CryptoUtilities.encryptAndSendStream(slow, data.length, channel, out);
+		return "Passed".equals(new String(channel.receive(in)));
+	}
+
+	/**
+	 * Outputs usage instructions
+	 */
+	public static void printUsage() {
+		System.out.println("Usage: java Benchmark modpow [bits]");
+		System.out.println("     or java Benchmark handshake [bits] [seconds] [expbits]");
+		System.out.println("     or java Benchmark crypto");
+		System.out.println("     or java Benchmark ctr [maxThreads] [maxMB]");
+		System.out.println("     or java Benchmark loadserver port platform|virtual|nio");
+		System.out.println("     or java Benchmark load host port clients kbytes pauseMs");
+	}
+
+	/**
+	 * Main method, runs the named benchmark.
+	 *
+	 * @param args
+	 *            args[0] is the benchmark name, followed by its options
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			printUsage();
+			return;
+		}
+		if (args[0].equals("modpow")) {
+			modPow(args.length > 1 ? Integer.parseInt(args[1]) : 1023);
+		} else if (args[0].equals("handshake")) {
+			handshake(args.length > 1 ? Integer.parseInt(args[1]) : 1023,
+					args.length > 2 ? Double.parseDouble(args[2]) : 3, args.length > 3 ? Integer.parseInt(args[3]) : 0);
+		} else if (args[0].equals("crypto")) {
+			crypto();
+		} else if (args[0].equals("ctr")) {
+			ctr(args.length > 1 ? Integer.parseInt(args[1]) : 32, args.length > 2 ? Long.parseLong(args[2]) : 4096);
+		} else if (args[0].equals("loadserver") && args.length == 3) {
+			loadServer(Integer.parseInt(args[1]), args[2]);
+		} else if (args[0].equals("load") && args.length == 6) {
+			load(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+					Long.parseLong(args[5]));
+		} else {
+			printUsage();
+		}
+	}
+}
@@ -0,0 +1,48 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A shared pool of fixed-size byte buffers, so that connections streaming a
+ * file reuse the same few chunk buffers instead of allocating new ones for
+ * every frame.
+ */
+public class BufferPool {
+	// buffers kept around when not in use
+	public static final int MAX_POOLED = 64;
+
+	private final int bufferSize;
+	private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bufferSize
+	 *            length of every buffer handed out
+	 */
+	public BufferPool(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @return a buffer of getBufferSize() bytes, with undefined contents
+	 */
+	public byte[] get() {
+		byte[] buf = free.poll();
+		return buf != null ? buf : new byte[bufferSize];
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers of the wrong size are dropped.
+	 *
+	 * @param buf
+	 *            a buffer obtained from get()
+	 */
+	public void release(byte[] buf) {
+		if (buf != null && buf.length == bufferSize && free.size() < MAX_POOLED) {
+			free.offer(buf);
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
@@ -1,7 +1,14 @@
 import java.io.*;
-import java.math.BigInteger;
 import java.net.*;
 import java.security.*;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.crypto.*;
 import javax.crypto.spec.*;
 
@@ -13,13 +20,39 @@ import javax.crypto.spec.*;
  * @version 1.0, October 23, 2013
  */
 public class Client {
+	// connection attempts while the server keeps saying it is busy
+	public static final int MAX_ATTEMPTS = 5;
+
+	// batch files in flight before the client waits for acknowledgements
+	public static final int DEFAULT_WINDOW = 16;
+
+	// times a batch file that failed verification is sent again
+	public static final int MAX_RETRANSMITS = 2;
+
+	// how often the batch sender checks whether the reader is done
+	private static final long ACK_POLL_MILLIS = 100;
+
 	private boolean debug;
 	private Socket sock; // Socket to communicate with
 	private BufferedReader stdIn; // for user input
 	private DataOutputStream out;
 	private DataInputStream in;
 	private SecretKeySpec key; // AES encryption key
+	private SecureChannel channel; // cipher suite in use on the connection
+	private boolean legacy; // keep AES-CBC and HMAC-SHA1, for older servers
 	private int numBits;
+	private String groupName; // named group to ask for, null to send a group of our own
+	private boolean streaming; // send the file in chunks instead of one message
+	private boolean batch; // send a directory of files over one session
+	private int window = DEFAULT_WINDOW; // batch files sent ahead of their acknowledgements
+	private int lanes; // threads encrypting ranges of one file, 0 to send it in order
+	private boolean resume; // send only what the server does not hold yet
+	private ForkJoinPool ctrPool; // encrypts counter-mode segments, null for another mode
+	private String infilename; // source file, asked for if null
+	private String outfilename; // destination file, asked for if null
+	private boolean lost; // the connection failed during the transfer
+	private String server; // host and port, the key for this server's session ticket
+	private static DHGroupPool groupPool; // ready DH groups, shared by all clients
 
 	/**
 	 * Utility for printing protocol messages
@@ -50,6 +83,8 @@ public class Client {
 		// open reader for usesr input
 		stdIn = new BufferedReader(new InputStreamReader(System.in));
 
+		server = ipaddress + ":" + port;
+
 		// Try to connect to the specified host on the specified port.
 		try {
 			sock = new Socket(InetAddress.getByName(ipaddress), port);
@@ -80,40 +115,296 @@ public class Client {
 		}
 	}
 
+	/**
+	 * Returns the shared group pool, starting one for the given size if there
+	 * is none yet. The pool is backed by the default on-disk group store.
+	 * 
+	 * @param bits
+	 *            bit length of the Sophie Germain prime
+	 */
+	private static synchronized DHGroupPool getGroupPool(int bits) {
+		if (groupPool == null || groupPool.getBits() != bits) {
+			DHGroupStore store = new DHGroupStore(new File(DHGroupStore.DEFAULT_FILE));
+			setGroupPool(new DHGroupPool(bits, DHGroupPool.DEFAULT_DEPTH, store));
+		}
+		return groupPool;
+	}
+
+	/**
+	 * Replaces the shared group pool, e.g. to use a different depth. The old
+	 * pool is shut down.
+	 * 
+	 * @param pool
+	 *            the new pool, or null to just shut down the current one
+	 */
+	public static synchronized void setGroupPool(DHGroupPool pool) {
+		if (groupPool != null && groupPool != pool) {
+			groupPool.shutdown();
+		}
+		groupPool = pool;
+	}
+
 	/**
 	 * Prompts user for a sting to be used as seed for deriving the AES key
 	 */
 	public void getKey() {
 		debug("Getting key (seed) from user");
+		if (resumeSession()) {
+			return;
+		}
 
-		PrimeUtil pUtil = new PrimeUtil(numBits,debug);
-
-		BigInteger sophie = PrimeUtil.sopieGermainPrime();
-		BigInteger pMinus2 = sophie.subtract(BigInteger.valueOf(2));
-		BigInteger g = PrimeUtil.primitiveRoot(sophie);
-		debug("generator g: " + g);
-		BigInteger a = PrimeUtil.getExponent(pMinus2);
-		BigInteger gToAmodP = g.modPow(a, sophie);
-		BigInteger pubKeyRec = BigInteger.ONE;
-		debug("g to the a (mod p): " + gToAmodP);
-		BigInteger sharedKey;
+		KeyExchange exchange = null;
+		byte[] pubKeyRec = null;
+		byte[] sharedKey;
 
 		try {
-			CryptoUtilities.send(sophie.toByteArray(), out);
-			CryptoUtilities.send(g.toByteArray(), out);
-			pubKeyRec = new BigInteger(CryptoUtilities.receive(in));
-			CryptoUtilities.send(gToAmodP.toByteArray(), out);
+			if (groupName != null) {
+				// the server answers a named group with its public value
+				debug("Asking for group " + groupName);
+				CryptoUtilities.send(NamedGroups.requestMessage(groupName), out);
+				pubKeyRec = CryptoUtilities.receive(in);
+				if (CryptoUtilities.startsWith(pubKeyRec, NamedGroups.UNKNOWN)) {
+					System.out.println("Server does not know group " + groupName + ", sending a group of our own.");
+				} else {
+					exchange = NamedGroups.keyExchange(groupName, false);
+				}
+			}
+			if (exchange == null) {
+				PrimeUtil pUtil = new PrimeUtil(numBits,debug);
+
+				DHGroupPool pool = getGroupPool(numBits);
+				DHGroup group = pool.take();
+				debug("Group pool hits: " + pool.getHits() + ", misses: " + pool.getMisses());
+				debug("generator g: " + group.getG());
+				CryptoUtilities.send(group.getP().toByteArray(), out);
+				CryptoUtilities.send(group.getG().toByteArray(), out);
+				pubKeyRec = CryptoUtilities.receive(in);
+				exchange = new DHKeyExchange(group);
+			}
+			byte[] pubKey = exchange.publicValue();
+			debug("Public key: " + CryptoUtilities.toHexString(pubKey));
+			CryptoUtilities.send(pubKey, out);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			System.out.println("Error exchanging keys with the server");
+			lost = true;
+			close();
+			return;
 		}
 
-		sharedKey = pubKeyRec.modPow(a, sophie);
+		sharedKey = exchange.agree(pubKeyRec);
+		if (sharedKey == null) {
+			System.out.println("Server sent an invalid public key.");
+			close();
+			return;
+		}
 
-		debug("Shared Key: " + CryptoUtilities.toHexString(sharedKey.toByteArray()));
+		debug("Shared Key: " + CryptoUtilities.toHexString(sharedKey));
 		// compute key: 1st 16 bytes of SHA-1 hash of seed
-		key = CryptoUtilities.key_from_seed(sharedKey.toByteArray());
+		key = CryptoUtilities.key_from_seed(sharedKey);
 		debug("Using key = " + CryptoUtilities.toHexString(key.getEncoded()));
+		channel = SecureChannel.legacy(key);
+	}
+
+	/**
+	 * Offers this server's session ticket, if there is one, in place of the
+	 * key exchange. Legacy mode never resumes, since only a negotiated
+	 * connection hands out tickets.
+	 * 
+	 * @return true if the server accepted the ticket and the session key is
+	 *         set, false to go on with the full exchange
+	 */
+	private boolean resumeSession() {
+		if (legacy) {
+			return false;
+		}
+		SessionTicket ticket = SessionTicket.take(server);
+		if (ticket == null) {
+			return false;
+		}
+		byte[] reply;
+		byte[] clientNonce = SessionTicket.newNonce();
+		try {
+			debug("Offering session ticket");
+			CryptoUtilities.send(ticket.resumeMessage(clientNonce), out);
+			reply = CryptoUtilities.receive(in);
+		} catch (IOException e) {
+			System.out.println("Error resuming the session");
+			return false;
+		}
+		if (!CryptoUtilities.startsWith(reply, SessionTicket.RESUMED_HEADER)) {
+			debug("Session ticket refused, doing the full key exchange");
+			return false;
+		}
+		byte[] serverNonce = SessionTicket.body(reply, SessionTicket.RESUMED_HEADER);
+		key = SessionTicket.resumedKey(ticket.getSecret(), clientNonce, serverNonce);
+		debug("Resumed session, using key = " + CryptoUtilities.toHexString(key.getEncoded()));
+		channel = SecureChannel.legacy(key);
+		return true;
+	}
+
+	/**
+	 * Proposes the AEAD suites this JVM can run and switches to the one the
+	 * server picks. In legacy mode nothing is proposed and the connection
+	 * keeps AES-CBC and HMAC-SHA1, which servers that predate the
+	 * negotiation need. A session ticket is asked for along with the suites,
+	 * and kept for the next connection if the server sends one.
+	 * 
+	 * @return false if the connection failed or the server's reply was not
+	 *         authentic
+	 */
+	public boolean negotiate() {
+		if (channel == null) {
+			// the key exchange failed
+			return false;
+		}
+		if (legacy) {
+			return true;
+		}
+		String suite;
+		byte[] choice;
+		try {
+			debug("Proposing cipher suites");
+			channel.send(channel.proposalMessage(true), out);
+			choice = channel.receive(in);
+			suite = channel.chosen(choice);
+		} catch (IOException e) {
+			System.out.println("Error negotiating the cipher suite");
+			lost = true;
+			close();
+			return false;
+		}
+		if (suite == null) {
+			System.out.println("Cipher suite choice failed its integrity check");
+			close();
+			return false;
+		}
+		try {
+			channel = SecureChannel.create(key, suite, true);
+		} catch (GeneralSecurityException e) {
+			System.out.println("Server chose an unsupported cipher suite: " + suite);
+			close();
+			return false;
+		}
+		debug("Using cipher suite " + suite);
+		if (SecureChannel.listsTicket(choice)) {
+			try {
+				SessionTicket ticket = SessionTicket.fromMessage(channel.receive(in),
+						SessionTicket.resumptionSecret(key));
+				if (ticket != null) {
+					debug("Got session ticket");
+					SessionTicket.put(server, ticket);
+				}
+			} catch (IOException e) {
+				System.out.println("Error receiving the session ticket");
+				lost = true;
+				close();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Selects a well-known group to ask the server for by name, instead of
+	 * taking one from the group pool and sending it across.
+	 * 
+	 * @param name
+	 *            one of NamedGroups.names(), or null to send our own group
+	 */
+	public void setGroup(String name) {
+		groupName = name;
+	}
+
+	/**
+	 * Selects streaming mode, in which the file is read, encrypted and sent in
+	 * fixed-size chunks so that memory use does not depend on the file size.
+	 * 
+	 * @param setStreaming
+	 *            true to stream the file
+	 */
+	public void setStreaming(boolean setStreaming) {
+		streaming = setStreaming;
+	}
+
+	/**
+	 * Selects batch mode, in which every file in a source directory is sent
+	 * over this one session.
+	 * 
+	 * @param setBatch
+	 *            true to send a directory
+	 */
+	public void setBatch(boolean setBatch) {
+		batch = setBatch;
+	}
+
+	/**
+	 * Sets how many batch files may be sent ahead of their acknowledgements.
+	 * 
+	 * @param setWindow
+	 *            files in flight, 1 waits for each acknowledgement
+	 */
+	public void setWindow(int setWindow) {
+		window = Math.max(1, setWindow);
+	}
+
+	/**
+	 * Selects parallel upload, in which ranges of the file are read and
+	 * encrypted by several threads at once and written into place by the
+	 * server.
+	 * 
+	 * @param setLanes
+	 *            number of threads, 0 to send the file in order
+	 */
+	public void setLanes(int setLanes) {
+		lanes = Math.max(0, setLanes);
+	}
+
+	/**
+	 * Selects counter-mode upload, in which segments of the file are
+	 * encrypted and tagged on a fork-join pool and sent in order.
+	 * 
+	 * @param threads
+	 *            pool size, 0 to use another mode
+	 */
+	public void setCtrThreads(int threads) {
+		if (ctrPool != null) {
+			ctrPool.shutdown();
+		}
+		ctrPool = threads > 0 ? new ForkJoinPool(threads) : null;
+	}
+
+	/**
+	 * Selects resumable upload. The server keeps the chunks it has received
+	 * if the connection drops, and a later attempt only sends the rest.
+	 * 
+	 * @param setResume
+	 *            true to make the upload resumable
+	 */
+	public void setResume(boolean setResume) {
+		resume = setResume;
+	}
+
+	/**
+	 * Selects legacy mode, in which no AEAD suite is proposed.
+	 * 
+	 * @param setLegacy
+	 *            true to keep AES-CBC and HMAC-SHA1
+	 */
+	public void setLegacy(boolean setLegacy) {
+		legacy = setLegacy;
+	}
+
+	/**
+	 * Sets the source and destination file names, so they are not asked for.
+	 * 
+	 * @param source
+	 *            the source file
+	 * @param destination
+	 *            the destination file name on the server
+	 */
+	public void setFileNames(String source, String destination) {
+		infilename = source;
+		outfilename = destination;
 	}
 
 	/**
@@ -122,14 +413,19 @@ public class Client {
 	 * @return true if file transfer was successful
 	 */
 	public boolean sendFile() {
+		if (batch) {
+			return sendBatch();
+		}
+
 		debug("Starting File Transfer");
 
 		// get input file name
-		String infilename;
 		FileInputStream infile;
 		try {
-			System.out.print("Please enter the source filename: ");
-			infilename = stdIn.readLine();
+			if (infilename == null) {
+				System.out.print("Please enter the source filename: ");
+				infilename = stdIn.readLine();
+			}
 			infile = new FileInputStream(infilename);
 		} catch (IOException e) {
 			System.out.println("Could not open source file");
@@ -138,60 +434,331 @@ public class Client {
 		}
 
 		// get output file name
-		String outfilename;
 		try {
-			System.out.print("Please enter the destination filename: ");
-			outfilename = stdIn.readLine();
+			if (outfilename == null) {
+				System.out.print("Please enter the destination filename: ");
+				outfilename = stdIn.readLine();
+			}
 		} catch (IOException e) {
 			System.out.println("Error getting destination filename.");
 			close();
 			return false;
 		}
 
+		try {
+			return sendItem(infile, outfilename);
+		} finally {
+			try {
+				infile.close();
+			} catch (IOException e) {
+				System.out.println("Error closing source file.");
+			}
+		}
+	}
+
+	/**
+	 * Sends every regular file in a directory over this session, then ends
+	 * the batch. The server acknowledges each file.
+	 * 
+	 * @return true if every file was transferred successfully
+	 */
+	public boolean sendBatch() {
+		debug("Starting Batch Transfer");
+
+		// get source and destination directories
+		File indir;
+		String outdir;
+		try {
+			System.out.print("Please enter the source directory: ");
+			indir = new File(stdIn.readLine());
+			System.out.print("Please enter the destination directory: ");
+			outdir = stdIn.readLine();
+		} catch (IOException e) {
+			System.out.println("Error getting directory names.");
+			close();
+			return false;
+		}
+		File[] files = indir.listFiles();
+		if (files == null) {
+			System.out.println("Could not read source directory");
+			close();
+			return false;
+		}
+		Arrays.sort(files);
+
+		try {
+			debug("Sending batch header");
+			channel.send(CryptoUtilities.BATCH_HEADER.getBytes(), out);
+		} catch (IOException e) {
+			System.out.println("Error starting batch");
+			close();
+			return false;
+		}
+
+		final LinkedBlockingQueue<BatchItem> pending = new LinkedBlockingQueue<BatchItem>();
+		for (File file : files) {
+			if (file.isFile()) {
+				pending.add(new BatchItem(file, new File(outdir, file.getName()).getPath()));
+			}
+		}
+		int count = pending.size();
+
+		/*
+		 * Up to window files are sent ahead of their acknowledgements. The
+		 * server acknowledges in order, so the reader matches each ack with
+		 * the oldest file in flight and queues failed files to be sent again.
+		 */
+		final ConcurrentLinkedQueue<BatchItem> inFlight = new ConcurrentLinkedQueue<BatchItem>();
+		final Semaphore slots = new Semaphore(window);
+		final AtomicInteger outstanding = new AtomicInteger(count); // files not yet passed or given up
+		final AtomicInteger passed = new AtomicInteger();
+		final AtomicBoolean broken = new AtomicBoolean();
+
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (outstanding.get() > 0 && !broken.get()) {
+						byte[] message = channel.receive(in);
+						if (message == null) {
+							System.out.println("Server acknowledgement failed authentication");
+							broken.set(true);
+							break;
+						}
+						String ack = new String(message);
+						BatchItem item = inFlight.poll();
+						if (item == null) {
+							System.out.println("Unexpected acknowledgement from server");
+							broken.set(true);
+							break;
+						}
+						debug("Got acknowledgement = " + ack + " for " + item.outfilename);
+						if (ack.compareTo("Passed") == 0) {
+							System.out.println(item.outfilename + " received and verified");
+							passed.incrementAndGet();
+							outstanding.decrementAndGet();
+						} else if (item.attempts <= MAX_RETRANSMITS) {
+							System.out.println("Error verifying " + item.outfilename + ", sending it again");
+							pending.add(item);
+						} else {
+							System.out.println("Error verifying " + item.outfilename);
+							outstanding.decrementAndGet();
+						}
+						slots.release();
+					}
+				} catch (IOException e) {
+					if (!broken.get()) {
+						System.out.println("Error getting server acknowledgement");
+					}
+					broken.set(true);
+				} finally {
+					// however the reader ends, files left over mean the batch is broken
+					if (outstanding.get() > 0) {
+						broken.set(true);
+					}
+					// wake the sender if it is waiting for a slot
+					slots.release(window);
+				}
+			}
+		}, "Client-acks");
+		reader.start();
+
+		try {
+			while (outstanding.get() > 0 && !broken.get()) {
+				BatchItem item = pending.poll(ACK_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (item == null) {
+					continue;
+				}
+				slots.acquire();
+				if (broken.get()) {
+					break;
+				}
+				FileInputStream infile;
+				try {
+					infile = new FileInputStream(item.source);
+				} catch (IOException e) {
+					System.out.println("Could not open source file " + item.source);
+					outstanding.decrementAndGet();
+					slots.release();
+					continue;
+				}
+				item.attempts++;
+				inFlight.add(item);
+				try {
+					if (!sendContents(infile, item.outfilename)) {
+						broken.set(true);
+					}
+				} finally {
+					try {
+						infile.close();
+					} catch (IOException e) {
+						System.out.println("Error closing source file.");
+					}
+				}
+			}
+			reader.join();
+		} catch (InterruptedException e) {
+			broken.set(true);
+		}
+		// the batch failed without a way to carry on
+		if (broken.get()) {
+			close();
+			return false;
+		}
+
+		try {
+			debug("Sending batch end");
+			channel.send(CryptoUtilities.BATCH_END.getBytes(), out);
+		} catch (IOException e) {
+			System.out.println("Error ending batch");
+			close();
+			return false;
+		}
+		System.out.println(passed.get() + " of " + count + " files received and verified");
+		return passed.get() == count;
+	}
+
+	/**
+	 * Sends one file and waits for the server's acknowledgement.
+	 * 
+	 * @param infile
+	 *            the open source file
+	 * @param outfilename
+	 *            destination file name on the server
+	 * @return true if file transfer was successful
+	 */
+	private boolean sendItem(FileInputStream infile, String outfilename) {
+		return sendContents(infile, outfilename) && receiveAck();
+	}
+
+	/**
+	 * Sends one file: its name, size and contents. Closes the connection on
+	 * errors.
+	 * 
+	 * @param infile
+	 *            the open source file
+	 * @param outfilename
+	 *            destination file name on the server
+	 * @return true if the file was sent
+	 */
+	private boolean sendContents(FileInputStream infile, String outfilename) {
 		// send the output file name
 		try {
 			debug("Sending output file name = " + outfilename);
-			CryptoUtilities.encryptAndSend(outfilename.getBytes(), key, out);
+			channel.send(outfilename.getBytes(), out);
 		} catch (IOException e) {
 			System.out.println("Error sending the output file name");
+			lost = true;
 			close();
 			return false;
 		}
 
 		// send the file size
+		long size;
+		CtrEngine ctr = null;
 		try {
-			debug("Sending file size = " + infile.available());
-			CryptoUtilities.encryptAndSend(String.valueOf(infile.available()).getBytes(), key, out);
+			size = infile.getChannel().size();
+			debug("Sending file size = " + size);
+			String sizeMsg = String.valueOf(size);
+			if (ctrPool != null && !resume) {
+				ctr = new CtrEngine(key, CtrEngine.newNonce(), size, ctrPool);
+				sizeMsg = CtrEngine.HEADER + size + " " + ctr.getNonce();
+			} else if (resume) {
+				sizeMsg = ResumableTransfer.HEADER + size;
+			} else if (lanes > 0) {
+				sizeMsg = ParallelTransfer.HEADER + size;
+			} else if (streaming) {
+				sizeMsg = CryptoUtilities.STREAM_HEADER + size;
+			}
+			channel.send(sizeMsg.getBytes(), out);
 		} catch (IOException e) {
 			System.out.println("Error sending the file length");
+			lost = true;
 			close();
 			return false;
 
 		}
 
-		// append message digest, encrypt, send file
-		try {
-			debug("Encrypting and sending file with MAC appended");
-			// read input file into a byte array
-			byte[] msg = new byte[infile.available()];
-			int read_bytes = infile.read(msg);
+		if (ctr != null) {
+			// encrypt segments on the pool, MAC tree root last
+			try {
+				debug("Sending file in counter mode on " + ctrPool.getParallelism() + " threads");
+				ctr.send(infile.getChannel(), out, channel);
+			} catch (IOException e) {
+				System.out.println("Error sending encrypted file");
+				lost = true;
+				close();
+				return false;
+			}
+		} else if (resume) {
+			// send only the chunks the server does not hold, digest root last
+			try {
+				debug("Sending missing chunks of " + ResumableTransfer.CHUNK_LEN + " bytes");
+				int sent = ResumableTransfer.send(infile.getChannel(), size, channel, in, out);
+				debug("Sent " + sent + " chunks");
+			} catch (IOException e) {
+				System.out.println("Error sending encrypted file");
+				lost = true;
+				close();
+				return false;
+			}
+		} else if (lanes > 0) {
+			// encrypt ranges on several threads, hash tree root last
+			try {
+				debug("Sending file in ranges of " + ParallelTransfer.CHUNK_LEN + " bytes on " + lanes + " lanes");
+				ParallelTransfer.send(infile.getChannel(), size, channel, out, lanes);
+			} catch (IOException e) {
+				System.out.println("Error sending encrypted file");
+				lost = true;
+				close();
+				return false;
+			}
+		} else if (streaming) {
+			// encrypt and send the file chunk by chunk, MAC last
+			try {
+				debug("Streaming file in chunks of " + CryptoUtilities.STREAM_CHUNK_LEN + " bytes");
+				CryptoUtilities.encryptAndSendStream(infile, size, channel, out);
+			} catch (IOException e) {
+				System.out.println("Error sending encrypted file");
+				lost = true;
+				close();
+				return false;
+			}
+		} else {
+			// append message digest, encrypt, send file
+			try {
+				debug("Encrypting and sending file with MAC appended");
+				// read input file into a byte array
+				byte[] msg = new byte[infile.available()];
+				int read_bytes = infile.read(msg);
 
-			// append HMAC-SHA-1 message digest
-			byte[] hashed_msg = CryptoUtilities.append_hash(msg, key);
+				// append HMAC-SHA-1 message digest, unless the cipher
+				// authenticates the file itself
+				byte[] hashed_msg = channel.isAead() ? msg : CryptoUtilities.append_hash(msg, key);
 
-			// encrypt anad send
-			CryptoUtilities.encryptAndSend(hashed_msg, key, out);
-		} catch (IOException e) {
-			System.out.println("Error sending encrypted file");
-			close();
-			return false;
+				// encrypt anad send
+				channel.send(hashed_msg, out);
+			} catch (IOException e) {
+				System.out.println("Error sending encrypted file");
+				lost = true;
+				close();
+				return false;
+			}
 		}
+		return true;
+	}
 
+	/**
+	 * Waits for the server's acknowledgement of the file just sent. Closes
+	 * the connection on errors.
+	 * 
+	 * @return true if the server verified the file
+	 */
+	private boolean receiveAck() {
 		// get acknowledgement from server
 		boolean transferOK = false;
 		try {
 			debug("Waiting for server acknowledgement");
-			String ack = new String(CryptoUtilities.receiveAndDecrypt(key, in));
+			String ack = new String(channel.receive(in));
 
 			debug("Got acknowledgement = " + ack);
 			if (ack.compareTo("Passed") == 0) {
@@ -202,6 +769,7 @@ public class Client {
 			}
 		} catch (IOException e) {
 			System.out.println("Error getting server acknowledgement");
+			lost = true;
 			close();
 			return transferOK;
 		}
@@ -210,14 +778,50 @@ public class Client {
 	}
 
 	/**
-	 * Shuts down the socket connection
+	 * A file of a batch, with the number of times it has been sent.
 	 */
-	public void close() {
-		// shutdown socket and input reader
-		System.out.println("Shutting down client.");
+	private static class BatchItem {
+		final File source;
+		final String outfilename;
+		int attempts; // written by the sender before the file is in flight
+
+		BatchItem(File source, String outfilename) {
+			this.source = source;
+			this.outfilename = outfilename;
+		}
+	}
+
+	/**
+	 * Waits for the server's greeting, which says whether it has admitted
+	 * this connection or is too busy.
+	 * 
+	 * @return 0 if admitted, milliseconds to wait before retrying if the
+	 *         server is busy, or -1 if there is no usable connection
+	 */
+	public long awaitAdmission() {
+		if (in == null) {
+			return -1;
+		}
 		try {
-			stdIn.close();
-			sock.close();
+			debug("Waiting for server greeting");
+			String greeting = new String(CryptoUtilities.receive(in));
+			debug("Got greeting = " + greeting);
+			return AdmissionController.retryDelay(greeting);
+		} catch (IOException e) {
+			System.out.println("Error receiving greeting from server.");
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+		}
+		return -1;
+	}
+
+	/**
+	 * Closes the connection but leaves user input open, for a retry.
+	 */
+	private void disconnect() {
+		try {
+			if (sock != null)
+				sock.close();
 			if (in != null)
 				in.close();
 			if (out != null)
@@ -225,71 +829,197 @@ public class Client {
 		} catch (IOException e) {
 			return;
 		}
+	}
 
+	/**
+	 * Shuts down the socket connection
+	 */
+	public void close() {
+		// shutdown socket and input reader
+		System.out.println("Shutting down client.");
+		setCtrThreads(0);
+		try {
+			stdIn.close();
+		} catch (IOException e) {
+			return;
+		}
+		disconnect();
 	}
 
 	/**
 	 * Outputs usage instructions
 	 */
 	public static void printUsage() {
-		System.out.println("Usage: java Client hostname port#");
-		System.out.println("     or java Client debug hostname port#");
+		System.out.println("Usage: java Client hostname port# bits [options]");
+		System.out.println("     or java Client hostname port# debug bits [options]");
 		System.out.println(" - hostname is a string identifying your server");
 		System.out.println(" - port is a positive integer identifying the port to connect to the server");
+		System.out.println(" - bits is the size of the Sophie Germain prime to use");
+		System.out.println(" - options:");
+		System.out.println("     stream   send the file in chunks with constant memory use");
+		System.out.println("     batch    send every file in a directory over one key exchange");
+		System.out.println("     window=N batch files sent ahead of their acknowledgements (default " + DEFAULT_WINDOW + ")");
+		System.out.println("     parallel[=N] encrypt ranges of the file on N threads (default " + ParallelTransfer.DEFAULT_LANES + ")");
+		System.out.println("     ctr[=N]  encrypt the file in counter mode on N threads (default " + ParallelTransfer.DEFAULT_LANES + ")");
+		System.out.println("     resume   keep what the server received if the connection drops, and reconnect (not with batch)");
+		System.out.println("     legacy   use AES-CBC and HMAC-SHA1 instead of AES-GCM, for older servers");
+		System.out.println("              (and skip session tickets, kept in " + SessionTicket.DEFAULT_FILE + ")");
+		StringBuilder names = new StringBuilder();
+		for (String name : NamedGroups.names()) {
+			names.append(names.length() > 0 ? ", " : "").append(name);
+		}
+		System.out.println("     group=NAME ask the server for a well-known group or X25519 instead of sending a group: " + names);
 	}
 
 	/**
 	 * Main method, starts the client.
 	 * 
 	 * @param args
-	 *            args[0] needs to be a hostname, args[1] a port number.
+	 *            args[0] needs to be a hostname, args[1] a port number,
+	 *            followed by an optional "debug", the number of bits and the
+	 *            transfer options.
 	 */
 	public static void main(String[] args) {
 		boolean setDebug = false;
+		boolean setStreaming = false;
+		boolean setBatch = false;
+		int setWindow = DEFAULT_WINDOW;
+		int setLanes = 0;
+		boolean setResume = false;
+		boolean setLegacy = false;
+		int setCtrThreads = 0;
+		String setGroup = null;
 
-		if (args.length < 2 || args.length > 4) {
+		if (args.length < 3) {
 			printUsage();
 			return;
 		}
 
 		// check if debug flag is being set
-		String ipaddress;
-		int port;
-		int bits;
-		if (args.length == 4) {
-			if (args[2].compareTo("debug") == 0) {
-				setDebug = true;
-				ipaddress = args[0];
-				port = Integer.parseInt(args[1]);
-				bits = Integer.parseInt(args[3]);
+		String ipaddress = args[0];
+		int port = Integer.parseInt(args[1]);
+		int next = 2;
+		if (args[next].compareTo("debug") == 0) {
+			setDebug = true;
+			next++;
+		}
+		if (next >= args.length) {
+			printUsage();
+			return;
+		}
+		int bits = Integer.parseInt(args[next++]);
+
+		// remaining arguments are transfer options
+		for (; next < args.length; next++) {
+			if (args[next].compareTo("stream") == 0) {
+				setStreaming = true;
+			} else if (args[next].compareTo("batch") == 0) {
+				setBatch = true;
+			} else if (args[next].compareTo("parallel") == 0) {
+				setLanes = ParallelTransfer.DEFAULT_LANES;
+			} else if (args[next].startsWith("parallel=")) {
+				setLanes = Integer.parseInt(args[next].substring("parallel=".length()));
+			} else if (args[next].compareTo("resume") == 0) {
+				setResume = true;
+			} else if (args[next].compareTo("ctr") == 0) {
+				setCtrThreads = ParallelTransfer.DEFAULT_LANES;
+			} else if (args[next].startsWith("ctr=")) {
+				setCtrThreads = Integer.parseInt(args[next].substring("ctr=".length()));
+			} else if (args[next].compareTo("legacy") == 0) {
+				setLegacy = true;
+			} else if (args[next].startsWith("group=") && NamedGroups.isKnown(args[next].substring("group=".length()))) {
+				setGroup = args[next].substring("group=".length());
+			} else if (args[next].startsWith("window=")) {
+				setWindow = Integer.parseInt(args[next].substring("window=".length()));
 			} else {
 				printUsage();
 				return;
 			}
-		} else {
-			ipaddress = args[0];
-			port = Integer.parseInt(args[1]);
-			bits = Integer.parseInt(args[2]);
 		}
-
-		// initialize client and socket connections
-		Client c;
-		try {
-			c = new Client(ipaddress, port, setDebug, bits);
-		} catch (NumberFormatException e) {
+		if (setBatch && setResume) {
+			// acknowledgements and resume manifests would share one reader
 			printUsage();
-			System.out.println("ERROR:  second argument was not a port number");
+			System.out.println("Error:  batch and resume cannot be combined.");
 			return;
 		}
 
-		// get the encryption key
-		c.getKey();
+		// a resumable upload reconnects when the connection is lost
+		Client c = null;
+		String source = null;
+		String destination = null;
+		for (int transfer = 1;; transfer++) {
+			c = connect(ipaddress, port, setDebug, bits);
+			if (c == null) {
+				break;
+			}
+			c.setStreaming(setStreaming);
+			c.setBatch(setBatch);
+			c.setWindow(setWindow);
+			c.setLanes(setLanes);
+			c.setResume(setResume);
+			c.setLegacy(setLegacy);
+			c.setCtrThreads(setCtrThreads);
+			c.setGroup(setGroup);
+			if (source != null) {
+				c.setFileNames(source, destination);
+			}
+
+			// get the encryption key
+			c.getKey();
 
-		// do file transfer
-		c.sendFile();
+			// agree on a cipher suite and do file transfer
+			boolean transferOK = c.negotiate() && c.sendFile();
+			if (transferOK || !setResume || !c.lost || transfer == MAX_ATTEMPTS) {
+				break;
+			}
+			source = c.infilename;
+			destination = c.outfilename;
+			long delay = AdmissionController.RETRY_AFTER_MILLIS * transfer;
+			System.out.println("Connection lost, resuming in " + delay + " ms.");
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
 
 		// shut down the client
-		c.close();
+		if (c != null) {
+			c.close();
+		}
+
+		// save any newly generated groups to the group store
+		setGroupPool(null);
+	}
+
+	/**
+	 * Connects to the server, retrying while it is busy.
+	 * 
+	 * @return the connected client, or null if there is no connection
+	 */
+	private static Client connect(String ipaddress, int port, boolean setDebug, int bits) {
+		for (int attempt = 1;; attempt++) {
+			Client c = new Client(ipaddress, port, setDebug, bits);
+			long delay = c.awaitAdmission();
+			if (delay == 0) {
+				return c;
+			}
+			if (delay < 0 || attempt == MAX_ATTEMPTS) {
+				if (delay > 0) {
+					System.out.println("Server busy, giving up.");
+				}
+				c.close();
+				return null;
+			}
+			c.disconnect();
+			System.out.println("Server busy, retrying in " + delay * attempt + " ms.");
+			try {
+				Thread.sleep(delay * attempt);
+			} catch (InterruptedException e) {
+				c.close();
+				return null;
+			}
+		}
 	}
 
 }
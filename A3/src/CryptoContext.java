@@ -0,0 +1,110 @@
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per-thread, per-key cache of the JCE objects used by CryptoUtilities. Looking
+ * up a provider and allocating a Cipher or Mac costs more than encrypting a
+ * short protocol message, so each thread keeps its objects for the last few
+ * keys it used. Macs are initialized with the key once; ciphers are re-inited
+ * only for each new IV.
+ *
+ * Objects handed out are only valid on the calling thread and only until the
+ * next call that asks for the same object.
+ */
+public class CryptoContext {
+	// keys remembered per thread, older ones are dropped
+	private static final int KEYS_PER_THREAD = 4;
+
+	// AES block and IV length (in bytes)
+	public static final int IV_LEN = 16;
+
+	private static final ThreadLocal<Map<SecretKeySpec, CryptoContext>> contexts = new ThreadLocal<Map<SecretKeySpec, CryptoContext>>() {
+		protected Map<SecretKeySpec, CryptoContext> initialValue() {
+			return new LinkedHashMap<SecretKeySpec, CryptoContext>(8, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<SecretKeySpec, CryptoContext> eldest) {
+					return size() > KEYS_PER_THREAD;
+				}
+			};
+		}
+	};
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private final SecretKeySpec key;
+	private final Cipher cipher;
+	private final Mac mac;
+	private final byte[] iv = new byte[IV_LEN];
+
+	private CryptoContext(SecretKeySpec key) throws GeneralSecurityException {
+		this.key = key;
+		this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		this.mac = Mac.getInstance("HmacSHA1");
+		this.mac.init(key);
+	}
+
+	/**
+	 * Returns the calling thread's context for the given key, creating it on
+	 * first use.
+	 *
+	 * @param key
+	 *            the secret key for AES and HMAC-SHA1
+	 * @return the context
+	 * @throws GeneralSecurityException
+	 *             if AES or HMAC-SHA1 is not available
+	 */
+	public static CryptoContext get(SecretKeySpec key) throws GeneralSecurityException {
+		Map<SecretKeySpec, CryptoContext> map = contexts.get();
+		CryptoContext ctx = map.get(key);
+		if (ctx == null) {
+			ctx = new CryptoContext(key);
+			map.put(key, ctx);
+		}
+		return ctx;
+	}
+
+	/**
+	 * @return the HMAC-SHA1 for this key, reset and ready for a new message
+	 */
+	public Mac mac() {
+		mac.reset();
+		return mac;
+	}
+
+	/**
+	 * Initializes the cipher for encryption under a fresh random IV.
+	 *
+	 * @return the cipher, its IV is available from getIV()
+	 */
+	public Cipher encryptCipher() throws GeneralSecurityException {
+		random.nextBytes(iv);
+		cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+		return cipher;
+	}
+
+	/**
+	 * Initializes the cipher for decryption.
+	 *
+	 * @param iv
+	 *            array holding the IV
+	 * @param offset
+	 *            start of the IV in the array
+	 * @return the cipher
+	 */
+	public Cipher decryptCipher(byte[] iv, int offset) throws GeneralSecurityException {
+		cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv, offset, IV_LEN));
+		return cipher;
+	}
+
+	/**
+	 * @return the IV chosen by the last encryptCipher() call
+	 */
+	public byte[] getIV() {
+		return iv;
+	}
+}
@@ -1,4 +1,6 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.security.*;
 import javax.crypto.*;
@@ -22,6 +24,38 @@ public class CryptoUtilities {
     // AES/CBC/PKCS5Padding parameter length
     public static final int AES_PARAM_LEN = 18;
 
+    // DER tag of the IV in the encoded parameters
+    private static final byte DER_OCTET_STRING = 0x04;
+
+    // plaintext bytes per frame when a file is streamed
+    public static final int STREAM_CHUNK_LEN = 64 * 1024;
+
+    // prefix of the file size message announcing a streamed file
+    public static final String STREAM_HEADER = "STREAM ";
+
+    // sent in place of a file name to start and to end a batch of files;
+    // real file names can never contain a NUL
+    public static final String BATCH_HEADER = "\0BATCH";
+    public static final String BATCH_END = "\0END";
+
+    // sent in place of the first file name to negotiate the cipher suite,
+    // followed by the suites proposed or the one chosen
+    public static final String MODE_HEADER = "\0MODE ";
+
+    // largest frame of a streamed file or range: a chunk, a range offset,
+    // and the padding and parameters of AES-CBC or the nonce and tag of AEAD
+    public static final int STREAM_FRAME_LEN = STREAM_CHUNK_LEN + 8 + Math.max(8 + AES_PARAM_LEN, SecureChannel.AEAD_OVERHEAD);
+
+    // largest handshake value or control message accepted by receive()
+    public static final int MAX_CONTROL_LEN = 64 * 1024;
+
+    // most any mode adds to a message: a MAC, a block of padding and the
+    // cipher parameters
+    public static final int MESSAGE_OVERHEAD = HMAC_SHA1_LEN + 16 + AES_PARAM_LEN;
+
+    // chunk and frame buffers shared by all streaming receivers
+    private static final BufferPool framePool = new BufferPool(STREAM_FRAME_LEN);
+
 
     /**
      * Constructs a AES_KEY_LEN byte AES key from a given seed
@@ -65,17 +99,13 @@ public class CryptoUtilities {
 	byte[] ret = null;
 		
 	try {
-	    // Initialize the MAC with the given key
-	    Mac mac = Mac.getInstance("HmacSHA1");
-	    mac.init(keySpec);
+	    // Get this thread's MAC for the given key
+	    Mac mac = CryptoContext.get(keySpec).mac();
 			
-	    // Compute the MAC
-	    byte[] m = mac.doFinal(message);
-			
-	    // Append the MAC to the message
-	    ret = new byte[message.length+m.length];
-	    System.arraycopy(message, 0, ret, 0, message.length);
-	    System.arraycopy(m, 0, ret, message.length, m.length);
+	    // Compute the MAC straight into the end of the output
+	    ret = Arrays.copyOf(message, message.length+HMAC_SHA1_LEN);
+	    mac.update(message);
+	    mac.doFinal(ret, message.length);
 			
 	} catch (Exception e) {
 	    e.printStackTrace();
@@ -114,22 +144,18 @@ public class CryptoUtilities {
 	boolean ret = false;
 		
 	try {
-	    // Split the array into the message and the digest
-	    byte[] message = new byte[messageHash.length - HMAC_SHA1_LEN];
-	    byte[] hash = new byte[HMAC_SHA1_LEN];
-			
-	    System.arraycopy(messageHash, 0, message, 0, message.length);
-	    System.arraycopy(messageHash, message.length, hash, 0, hash.length);
+	    // The digest is the last HMAC_SHA1_LEN bytes
+	    int length = messageHash.length - HMAC_SHA1_LEN;
 			
-	    // Initialize the MAC with the given key
-	    Mac mac = Mac.getInstance("HmacSHA1");
-	    mac.init(keySpec);
+	    // Get this thread's MAC for the given key
+	    Mac mac = CryptoContext.get(keySpec).mac();
 			
 	    // Get the MAC of the message
-	    byte[] m = mac.doFinal(message);
+	    mac.update(messageHash, 0, length);
+	    byte[] m = mac.doFinal();
 			
 	    // compare the the MAC sent and the one calculated
-	    ret = Arrays.equals(m, hash);
+	    ret = MessageDigest.isEqual(m, Arrays.copyOfRange(messageHash, length, messageHash.length));
 			
 	} catch (Exception e) {
 	    // if there is an error, we know that hash can't be correct
@@ -149,22 +175,38 @@ public class CryptoUtilities {
      * @return encrypted message (with algorithm parameters appended
      */
     public static byte[] encrypt(byte[] message, SecretKeySpec keySpec)
+    {
+	return encrypt(message, 0, message.length, keySpec);
+    }
+
+
+
+    /**
+     * Encrypts part of the given array using the given key with AES-CBC.
+     *
+     * @param message  array holding the message
+     * @param offset  start of the message in the array
+     * @param length  length of the message
+     * @param keySpec  the secret key
+     * @return encrypted message (with algorithm parameters appended
+     */
+    public static byte[] encrypt(byte[] message, int offset, int length, SecretKeySpec keySpec)
     {
 	byte[] ret = null;
 		
 	try {
-	    // Initialize the cipher with the given key
-	    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-	    cipher.init(Cipher.ENCRYPT_MODE, keySpec);
+	    // Initialize this thread's cipher with the given key and a new IV
+	    CryptoContext ctx = CryptoContext.get(keySpec);
+	    Cipher cipher = ctx.encryptCipher();
 			
-	    // encrypt the message
-	    byte[] cipherText = cipher.doFinal(message);
-	    byte[] params = cipher.getParameters().getEncoded();
+	    // encrypt the message, leaving room for the parameters
+	    ret = new byte[cipher.getOutputSize(length)+AES_PARAM_LEN];
+	    int len = cipher.doFinal(message, offset, length, ret, 0);
 			
-	    // Combine the ciphertext and cipher parameters into one byte array
-	    ret = new byte[cipherText.length+params.length];
-	    System.arraycopy(cipherText, 0, ret, 0, cipherText.length); 
-	    System.arraycopy(params, 0, ret, cipherText.length, params.length);
+	    // Append the cipher parameters (the DER-encoded IV)
+	    ret[len] = DER_OCTET_STRING;
+	    ret[len+1] = (byte) CryptoContext.IV_LEN;
+	    System.arraycopy(ctx.getIV(), 0, ret, len+2, CryptoContext.IV_LEN);
 	} catch (Exception e) {
 	    e.printStackTrace();
 	}
@@ -183,27 +225,31 @@ public class CryptoUtilities {
      * @return decrypted message
      */
     public static byte[] decrypt(byte[] decrypt, SecretKeySpec keySpec)
+    {
+	return decrypt(decrypt, decrypt.length, keySpec);
+    }
+
+
+
+    /**
+     * Decrypts the first length bytes of the given array using the given key
+     * with AES-CBC, without copying them out first.
+     *
+     * @param decrypt  the message (in bytes) with parameters appended
+     * @param length  length of the message
+     * @param keySpec  the secret key
+     * @return decrypted message
+     */
+    public static byte[] decrypt(byte[] decrypt, int length, SecretKeySpec keySpec)
     {
 	byte[] message = null;
 		
 	try {
-	    // Extract the cipher parameters from the end of the input array
-	    byte[] cipherText = new byte[decrypt.length - AES_PARAM_LEN];
-	    byte[] paramsEnc = new byte[AES_PARAM_LEN];
-			
-	    System.arraycopy(decrypt, 0, cipherText, 0, cipherText.length);
-	    System.arraycopy(decrypt, cipherText.length, paramsEnc, 0, paramsEnc.length);
-
-	    // Initialize the parameters
-	    AlgorithmParameters params = AlgorithmParameters.getInstance("AES");
-	    params.init(paramsEnc);
-	        
-	    // Initialize the cipher for decryption
-	    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-	    cipher.init(Cipher.DECRYPT_MODE, keySpec, params);
+	    // Initialize this thread's cipher with the IV from the end of the input
+	    Cipher cipher = decryptCipher(decrypt, length, keySpec);
 			
 	    // Decrypt the ciphertext
-	    message = cipher.doFinal(cipherText);
+	    message = cipher.doFinal(decrypt, 0, length - AES_PARAM_LEN);
 
 	} catch (Exception e) {
 	    e.printStackTrace();
@@ -214,6 +260,27 @@ public class CryptoUtilities {
 
 
 
+    /**
+     * Checks the parameters at the end of an encrypted message and sets up
+     * this thread's cipher to decrypt it.
+     *
+     * @param decrypt  the message (in bytes) with parameters appended
+     * @param length  length of the message
+     * @param keySpec  the secret key
+     * @return the initialized cipher
+     * @throws GeneralSecurityException if the parameters are malformed
+     */
+    private static Cipher decryptCipher(byte[] decrypt, int length, SecretKeySpec keySpec) throws GeneralSecurityException
+    {
+	int params = length - AES_PARAM_LEN;
+	if (params < 0 || decrypt[params] != DER_OCTET_STRING || decrypt[params+1] != CryptoContext.IV_LEN)
+	    throw new InvalidAlgorithmParameterException("Malformed AES parameters");
+
+	return CryptoContext.get(keySpec).decryptCipher(decrypt, params+2);
+    }
+
+
+
     /**
      * Writes the given message to the supplied stream.
      *
@@ -236,34 +303,68 @@ public class CryptoUtilities {
 
 
     /**
-     * Decrypts the given message using the given key with AES-CBC.
+     * Reads one message of at most MAX_CONTROL_LEN bytes from the supplied
+     * stream.
      *
-     * @param keySpec  the secret key
      * @param in   the input stream
-     * @throws IOException
+     * @throws IOException if the stream ends or the message is too large
      * @return received message
      */
     public static byte[] receive(DataInputStream in) throws IOException
     {
-	byte[] message = null;
+	return receive(in, MAX_CONTROL_LEN);
+    }
 
+
+
+    /**
+     * Reads one message from the supplied stream.  The size the peer claims
+     * is checked before anything is allocated.
+     *
+     * @param in   the input stream
+     * @param maxLen  largest message accepted
+     * @throws IOException if the stream ends or the message is too large
+     * @return received message
+     */
+    public static byte[] receive(DataInputStream in, int maxLen) throws IOException
+    {
 	// read the message size
 	int size = in.readInt();
+	if (size < 0 || size > maxLen)
+	    throw new IOException("Message of " + size + " bytes exceeds the " + maxLen + " byte limit");
 
-	// read the message bytes into the array		
-	message = new byte[size];
-	int i = 0;
-	int total = 0;
-	do {
-	    i = in.read(message, total, size-total);
-	    total += i;
-	} while (total != size);
+	// read the message bytes into the array, failing if the stream ends
+	byte[] message = new byte[size];
+	in.readFully(message);
 
 	return message;
     }
 
 
 
+    /**
+     * Reads one message from the supplied stream into the given buffer.
+     *
+     * @param in   the input stream
+     * @param buf  buffer to receive the message
+     * @throws IOException if the stream ends or the message does not fit
+     * @return length of the received message
+     */
+    public static int receive(DataInputStream in, byte[] buf) throws IOException
+    {
+	// read the message size
+	int size = in.readInt();
+	if (size < 0 || size > buf.length)
+	    throw new IOException("Message of " + size + " bytes exceeds the " + buf.length + " byte limit");
+
+	// read the message bytes into the buffer
+	in.readFully(buf, 0, size);
+
+	return size;
+    }
+
+
+
     /**
      * Encrypts the given message using the given key with AES-CBC, and writes to 
      * the supplied stream.
@@ -284,6 +385,153 @@ public class CryptoUtilities {
 
 
 
+    /**
+     * Streams a file to the supplied output stream.  The input is read in
+     * STREAM_CHUNK_LEN pieces through one reusable buffer, and each piece is
+     * encrypted and sent as its own frame.  In the legacy mode the HMAC-SHA1
+     * digest of the whole plaintext is computed along the way and sent,
+     * encrypted, as the final frame.  With an AEAD suite every frame already
+     * carries its own tag and the frames' counters fix their order, so the
+     * final frame is empty.
+     *
+     * @param infile  the input stream, positioned at the start of the file
+     * @param size  number of bytes to send
+     * @param channel  the connection's cipher suite and keys
+     * @param out  the output stream
+     * @throws IOException
+     */
+    public static void encryptAndSendStream(InputStream infile, long size, SecureChannel channel, DataOutputStream out) throws IOException
+    {
+	Mac mac = channel.isAead() ? null : streamMac(channel.getKey());
+
+	byte[] chunk = new byte[STREAM_CHUNK_LEN];
+	long remaining = size;
+	while (remaining > 0) {
+	    // fill the chunk, short reads are normal for streams
+	    int len = (int) Math.min(chunk.length, remaining);
+	    int total = 0;
+	    while (total < len) {
+		int i = infile.read(chunk, total, len - total);
+		if (i < 0)
+		    throw new EOFException("File ended " + (remaining - total) + " bytes early");
+		total += i;
+	    }
+
+	    if (mac != null)
+		mac.update(chunk, 0, len);
+	    send(channel.seal(chunk, 0, len), out);
+	    remaining -= len;
+	}
+
+	// the digest goes last, so the receiver can check it once all frames are in
+	channel.send(mac != null ? mac.doFinal() : new byte[0], out);
+    }
+
+
+
+    /**
+     * Returns this thread's HMAC-SHA1 for a streamed file.  The file's chunks
+     * are all added to it, so nothing else on this thread may use the same
+     * key's MAC until the transfer is done.
+     *
+     * @param keySpec  the secret key for HMAC-SHA1
+     * @throws IOException if HMAC-SHA1 is not available
+     * @return the reset MAC
+     */
+    private static Mac streamMac(SecretKeySpec keySpec) throws IOException
+    {
+	try {
+	    return CryptoContext.get(keySpec).mac();
+	}
+	catch (GeneralSecurityException e) {
+	    throw new IOException("Could not initialize HMAC-SHA1", e);
+	}
+    }
+
+
+
+    /**
+     * Decrypts the first length bytes of the given array into the output
+     * buffer using the given key with AES-CBC.
+     *
+     * @param decrypt  the message (in bytes) with parameters appended
+     * @param length  length of the message
+     * @param keySpec  the secret key
+     * @param output  buffer for the plaintext
+     * @return length of the plaintext, or -1 if decryption failed
+     */
+    public static int decrypt(byte[] decrypt, int length, SecretKeySpec keySpec, byte[] output)
+    {
+	try {
+	    // Initialize this thread's cipher with the IV from the end of the input
+	    Cipher cipher = decryptCipher(decrypt, length, keySpec);
+
+	    // Decrypt the ciphertext
+	    return cipher.doFinal(decrypt, 0, length - AES_PARAM_LEN, output, 0);
+	}
+	catch (Exception e) {
+	    return -1;
+	}
+    }
+
+
+
+    /**
+     * Receives a file sent by encryptAndSendStream() and writes the plaintext
+     * to the given channel as it arrives.  Only one frame and one chunk of
+     * plaintext are held in memory at a time, both taken from a shared pool.
+     * All frames are read even when one fails to decrypt, so the stream stays
+     * in step for the acknowledgement.
+     *
+     * @param channel  the connection's cipher suite and keys
+     * @param in   the input stream
+     * @param size  number of plaintext bytes announced by the sender
+     * @param outfile  channel receiving the plaintext
+     * @throws IOException
+     * @return true if every frame decrypted and the final frame checks out
+     */
+    public static boolean receiveAndDecryptStream(SecureChannel channel, DataInputStream in, long size, WritableByteChannel outfile) throws IOException
+    {
+	Mac mac = channel.isAead() ? null : streamMac(channel.getKey());
+
+	byte[] frame = framePool.get();
+	byte[] chunk = framePool.get();
+	try {
+	    boolean ok = true;
+	    long remaining = size;
+	    while (remaining > 0) {
+		int expected = (int) Math.min(STREAM_CHUNK_LEN, remaining);
+		int len = receive(in, frame);
+		if (ok) {
+		    int n = channel.open(frame, len, chunk, true);
+		    if (n != expected) {
+			ok = false;
+		    }
+		    else {
+			if (mac != null)
+			    mac.update(chunk, 0, n);
+			ByteBuffer buf = ByteBuffer.wrap(chunk, 0, n);
+			while (buf.hasRemaining())
+			    outfile.write(buf);
+		    }
+		}
+		remaining -= expected;
+	    }
+
+	    // compare the digest sent last with the one computed
+	    byte[] digest = channel.receive(in);
+	    if (mac == null)
+		return ok && digest != null && digest.length == 0;
+	    return ok && digest != null && MessageDigest.isEqual(mac.doFinal(), digest);
+	}
+	finally {
+	    framePool.release(frame);
+	    framePool.release(chunk);
+	}
+    }
+
+
+
     /**
      * Decrypts the given message using the given key with AES-CBC.
      *
@@ -303,6 +551,28 @@ public class CryptoUtilities {
 
 
 
+    /**
+     * Checks whether a message starts with one of the "\0"-prefixed protocol
+     * headers, which no number sent during the key exchange can start with.
+     *
+     * @param message  the message (in bytes), may be null
+     * @param header  the header
+     * @return true if the message starts with the header
+     */
+    public static boolean startsWith(byte[] message, String header)
+    {
+	byte[] h = header.getBytes();
+	if (message == null || message.length < h.length)
+	    return false;
+	for (int i = 0; i < h.length; i++) {
+	    if (message[i] != h[i])
+		return false;
+	}
+	return true;
+    }
+
+
+
     /**
      * Converts a byte array to hex string
      * This code from http://java.sun.com/j2se/1.4.2/docs/guide/security/jce/JCERefGuide.html#HmacEx
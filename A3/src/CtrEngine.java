@@ -0,0 +1,444 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Counter-mode encryption of large payloads on a fork-join pool. A payload is
+ * cut into SEGMENT_LEN segments. Every segment's key stream depends only on
+ * the file's nonce and the segment's position, so segments are encrypted
+ * independently on as many threads as the pool has and still come out in
+ * file order, ready for the socket.
+ *
+ * Integrity comes from a two-level MAC tree that is just as parallel: each
+ * segment's leaf is an HMAC-SHA1 over its index and ciphertext, computed by
+ * the same task right after the segment is encrypted or before it is
+ * decrypted, and the root is an HMAC-SHA1 over the nonce, the size and all
+ * leaves in order. The root is sent last, so the receiver checks it once all
+ * segments are in, like the digest of a streamed file.
+ *
+ * The payload moves through the engine in windows of WINDOW_SEGMENTS
+ * segments, two at a time: while one window is being encrypted the previous
+ * one is written to the socket, and while one window is being read the
+ * previous one is decrypted. Each window's leaves are folded into the root
+ * once the window is done, so the engine only ever holds the leaves of two
+ * windows, whatever the size the sender announces.
+ */
+public class CtrEngine {
+	// prefix of the file size message announcing a counter-mode upload,
+	// followed by the size and the file's nonce
+	public static final String HEADER = "CTR ";
+
+	public static final int SEGMENT_LEN = CryptoUtilities.STREAM_CHUNK_LEN;
+
+	// segments encrypted or decrypted together
+	public static final int WINDOW_SEGMENTS = 32;
+	public static final int WINDOW_LEN = WINDOW_SEGMENTS * SEGMENT_LEN;
+
+	// AES block length, the counter advances once per block
+	private static final int BLOCK_LEN = 16;
+
+	// leaf slots, enough for the two windows in flight
+	private static final int RING = 2 * WINDOW_SEGMENTS;
+
+	private static final ForkJoinPool defaultPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance("AES/CTR/NoPadding");
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final SecretKeySpec cipherKey;
+	private final SecretKeySpec macKey;
+	private final ForkJoinPool pool;
+	private final long nonce;
+	private final long size;
+	private final long segments;
+	private final byte[][] leaves = new byte[RING][]; // by segment index modulo RING
+	private final Mac rootMac; // nonce, size and the leaves folded so far
+	private long folded; // segments folded into rootMac
+	private boolean missing; // a segment was never sealed or opened
+
+	/**
+	 * Constructor. The cipher and MAC keys are derived from the session key,
+	 * so counter mode never shares a key with the other modes.
+	 *
+	 * @param key
+	 *            the session key agreed by Diffie-Hellman
+	 * @param nonce
+	 *            the file's nonce, never reused under one session key
+	 * @param size
+	 *            payload size in bytes
+	 * @param pool
+	 *            the pool segments are processed on, null for a shared pool
+	 *            with one thread per core
+	 * @throws IOException
+	 *             if the size is out of range or HMAC-SHA1 is not available
+	 */
+	public CtrEngine(SecretKeySpec key, long nonce, long size, ForkJoinPool pool) throws IOException {
+		if (size < 0) {
+			throw new IOException("Bad file size " + size);
+		}
+		this.cipherKey = derive(key, "cipher", CryptoUtilities.AES_KEY_LEN, "AES");
+		this.macKey = derive(key, "mac", CryptoUtilities.HMAC_SHA1_LEN, "HmacSHA1");
+		this.pool = pool != null ? pool : defaultPool;
+		this.nonce = nonce;
+		this.size = size;
+		this.segments = (size + SEGMENT_LEN - 1) / SEGMENT_LEN;
+		try {
+			rootMac = Mac.getInstance("HmacSHA1");
+			rootMac.init(macKey);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+		rootMac.update(ByteBuffer.allocate(16).putLong(nonce).putLong(size).array());
+	}
+
+	/**
+	 * @return a fresh random nonce for a file
+	 */
+	public static long newNonce() {
+		return random.nextLong();
+	}
+
+	/**
+	 * @return the file's nonce
+	 */
+	public long getNonce() {
+		return nonce;
+	}
+
+	/**
+	 * Starts encrypting one window of the payload in place and computing its
+	 * leaves. Windows go in file order, and the task for a window must be
+	 * joined before the window after next is started.
+	 *
+	 * @param buf
+	 *            the plaintext, replaced by the ciphertext
+	 * @param length
+	 *            bytes in buf, WINDOW_LEN unless it ends the payload
+	 * @param position
+	 *            offset of buf[0] in the payload, a multiple of WINDOW_LEN
+	 * @return the running task, join it before using buf
+	 */
+	public ForkJoinTask<Void> seal(byte[] buf, int length, long position) {
+		return start(true, buf, length, position);
+	}
+
+	/**
+	 * Starts computing the leaves of one window of the payload and decrypting
+	 * it in place. The same ordering rules as for seal() apply.
+	 *
+	 * @param buf
+	 *            the ciphertext, replaced by the plaintext
+	 * @param length
+	 *            bytes in buf
+	 * @param position
+	 *            offset of buf[0] in the payload
+	 * @return the running task, join it before using buf
+	 */
+	public ForkJoinTask<Void> open(byte[] buf, int length, long position) {
+		return start(false, buf, length, position);
+	}
+
+	private ForkJoinTask<Void> start(boolean seal, byte[] buf, int length, long position) {
+		if (length > WINDOW_LEN) {
+			throw new IllegalArgumentException("More than one window");
+		}
+		// the window before the previous one has been joined, its slots are reused
+		fold(position / SEGMENT_LEN - WINDOW_SEGMENTS);
+		return pool.submit(new Segments(seal, buf, position, 0, segmentsIn(length)));
+	}
+
+	/**
+	 * Tags and decrypts one segment in place on the calling thread, for
+	 * receivers that get segments one at a time.
+	 *
+	 * @param buf
+	 *            the segment's ciphertext, replaced by the plaintext
+	 * @param length
+	 *            bytes in buf
+	 * @param position
+	 *            offset of the segment in the payload
+	 * @return false if the segment does not fit its position
+	 */
+	public boolean openSegment(byte[] buf, int length, long position) {
+		if (position < 0 || position >= size || position % SEGMENT_LEN != 0
+				|| length != Math.min(SEGMENT_LEN, size - position)) {
+			return false;
+		}
+		try {
+			fold(position / SEGMENT_LEN);
+			segment(false, buf, 0, position);
+			return true;
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	private int segmentsIn(int length) {
+		return (length + SEGMENT_LEN - 1) / SEGMENT_LEN;
+	}
+
+	/**
+	 * Folds the leaves of the segments before upTo into the root, in order.
+	 */
+	private void fold(long upTo) {
+		for (; folded < upTo; folded++) {
+			int slot = (int) (folded % RING);
+			if (leaves[slot] == null) {
+				missing = true;
+			} else {
+				rootMac.update(leaves[slot]);
+				leaves[slot] = null;
+			}
+		}
+	}
+
+	/**
+	 * @return the root of the MAC tree, once every segment has been sealed or
+	 *         opened and joined; only called once
+	 * @throws IOException
+	 *             if a segment is missing
+	 */
+	public byte[] root() throws IOException {
+		fold(segments);
+		if (missing) {
+			throw new IOException("Segment missing from the MAC tree");
+		}
+		return rootMac.doFinal();
+	}
+
+	/**
+	 * Splits a run of segments in half until each task has one segment.
+	 */
+	private class Segments extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final boolean seal;
+		private final byte[] buf;
+		private final long position;
+		private final int from;
+		private final int to;
+
+		Segments(boolean seal, byte[] buf, long position, int from, int to) {
+			this.seal = seal;
+			this.buf = buf;
+			this.position = position;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Segments(seal, buf, position, from, mid), new Segments(seal, buf, position, mid, to));
+				return;
+			}
+			try {
+				segment(seal, buf, from, position);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Encrypts and tags, or tags and decrypts, segment i of buf.
+	 */
+	private void segment(boolean seal, byte[] buf, int i, long position) throws GeneralSecurityException {
+		int off = i * SEGMENT_LEN;
+		long start = position + off;
+		int len = (int) Math.min(SEGMENT_LEN, size - start);
+		long index = start / SEGMENT_LEN;
+
+		// the counter block is the nonce and the number of the segment's first block
+		byte[] counter = ByteBuffer.allocate(BLOCK_LEN).putLong(nonce).putLong(start / BLOCK_LEN).array();
+		Cipher cipher = ciphers.get();
+		cipher.init(seal ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(counter));
+
+		if (seal) {
+			cipher.doFinal(buf, off, len, buf, off);
+		}
+		Mac mac = CryptoContext.get(macKey).mac();
+		mac.update(ByteBuffer.allocate(8).putLong(index).array());
+		mac.update(buf, off, len);
+		leaves[(int) (index % RING)] = mac.doFinal();
+		if (!seal) {
+			cipher.doFinal(buf, off, len, buf, off);
+		}
+	}
+
+	/**
+	 * Waits for a task started by seal() or open().
+	 */
+	private static void join(ForkJoinTask<Void> task) throws IOException {
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Sends a file as counter-mode segments, then the root of the MAC tree.
+	 * The file's nonce must already have been sent in the size message.
+	 *
+	 * @param file
+	 *            the source file, read from its current position
+	 * @param out
+	 *            the output stream
+	 * @param channel
+	 *            the connection's cipher suite, for the root
+	 * @throws IOException
+	 *             if the file cannot be read or the stream fails
+	 */
+	public void send(FileChannel file, DataOutputStream out, SecureChannel channel) throws IOException {
+		byte[][] windows = { new byte[WINDOW_LEN], new byte[WINDOW_LEN] };
+		ForkJoinTask<Void> pending = null;
+		int pendingLen = 0;
+		int cur = 0;
+		try {
+			for (long position = 0; position < size; position += WINDOW_LEN) {
+				int len = (int) Math.min(WINDOW_LEN, size - position);
+				ByteBuffer buf = ByteBuffer.wrap(windows[cur], 0, len);
+				while (buf.hasRemaining()) {
+					if (file.read(buf) < 0) {
+						throw new EOFException("File ended before " + size + " bytes");
+					}
+				}
+				ForkJoinTask<Void> task = seal(windows[cur], len, position);
+
+				// write the previous window while this one is encrypted
+				if (pending != null) {
+					join(pending);
+					writeSegments(windows[1 - cur], pendingLen, out);
+				}
+				pending = task;
+				pendingLen = len;
+				cur = 1 - cur;
+			}
+			if (pending != null) {
+				join(pending);
+				writeSegments(windows[1 - cur], pendingLen, out);
+			}
+			pending = null;
+		} finally {
+			if (pending != null) {
+				pending.cancel(false);
+			}
+		}
+		channel.send(root(), out);
+	}
+
+	private static void writeSegments(byte[] window, int length, DataOutputStream out) throws IOException {
+		for (int off = 0; off < length; off += SEGMENT_LEN) {
+			int len = Math.min(SEGMENT_LEN, length - off);
+			out.writeInt(len);
+			out.write(window, off, len);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Receives a file sent by send() and writes the plaintext to the given
+	 * channel. All segments are read even after one is malformed, so the
+	 * stream stays in step for the acknowledgement.
+	 *
+	 * @param in
+	 *            the input stream
+	 * @param file
+	 *            channel receiving the plaintext
+	 * @param channel
+	 *            the connection's cipher suite, for the root
+	 * @return true if every segment arrived whole and the root matches
+	 * @throws IOException
+	 *             if the stream or the file fails
+	 */
+	public boolean receive(DataInputStream in, FileChannel file, SecureChannel channel) throws IOException {
+		byte[][] windows = { new byte[WINDOW_LEN], new byte[WINDOW_LEN] };
+		ForkJoinTask<Void> pending = null;
+		int pendingLen = 0;
+		int cur = 0;
+		boolean ok = true;
+		try {
+			for (long position = 0; position < size; position += WINDOW_LEN) {
+				int len = (int) Math.min(WINDOW_LEN, size - position);
+				for (int off = 0; off < len; off += SEGMENT_LEN) {
+					int expected = Math.min(SEGMENT_LEN, len - off);
+					int n = in.readInt();
+					if (n < 0 || n > SEGMENT_LEN) {
+						throw new IOException("Segment of " + n + " bytes exceeds the " + SEGMENT_LEN + " byte limit");
+					}
+					in.readFully(windows[cur], ok && n == expected ? off : 0, n);
+					ok = ok && n == expected;
+				}
+				ForkJoinTask<Void> task = ok ? open(windows[cur], len, position) : null;
+
+				// write the previous window while this one is decrypted
+				if (pending != null) {
+					join(pending);
+					write(file, windows[1 - cur], pendingLen);
+				}
+				pending = task;
+				pendingLen = len;
+				cur = 1 - cur;
+			}
+			if (pending != null) {
+				join(pending);
+				write(file, windows[1 - cur], pendingLen);
+			}
+			pending = null;
+		} finally {
+			if (pending != null) {
+				pending.cancel(false);
+			}
+		}
+		byte[] root = channel.receive(in);
+		return ok && root != null && MessageDigest.isEqual(root(), root);
+	}
+
+	private static void write(FileChannel file, byte[] window, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(window, 0, length);
+		while (buf.hasRemaining()) {
+			file.write(buf);
+		}
+	}
+
+	/**
+	 * Derives a key for one use from the session key.
+	 */
+	private static SecretKeySpec derive(SecretKeySpec key, String use, int length, String algorithm)
+			throws IOException {
+		try {
+			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+			sha256.update(("A3 CTR " + use).getBytes());
+			return new SecretKeySpec(sha256.digest(key.getEncoded()), 0, length, algorithm);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,150 @@
+import java.math.BigInteger;
+
+/**
+ * A Diffie-Hellman group: a safe prime p = 2q+1 together with a generator g.
+ * New groups use a generator of the subgroup of order q; groups stored by
+ * older versions use a primitive root, and both are accepted.
+ */
+public class DHGroup {
+	// Miller-Rabin certainty used when validating a group
+	private static final int CERTAINTY = 50;
+
+	// sizes of p isPlausible() accepts from a client
+	public static final int MIN_RECEIVED_BITS = 128;
+	public static final int MAX_RECEIVED_BITS = 8192;
+
+	private static final BigInteger TWO = BigInteger.valueOf(2);
+
+	private final BigInteger p;
+	private final BigInteger q;
+	private final BigInteger g;
+	private volatile boolean validated; // set once the group has been checked
+
+	/**
+	 * Constructor.
+	 *
+	 * @param p
+	 *            the safe prime modulus
+	 * @param q
+	 *            the Sophie Germain prime (p-1)/2
+	 * @param g
+	 *            the generator
+	 */
+	public DHGroup(BigInteger p, BigInteger q, BigInteger g) {
+		this(p, q, g, false);
+	}
+
+	/**
+	 * Constructor for groups whose parameters are already known to be good.
+	 *
+	 * @param validated
+	 *            true if validate() does not need to check the group again
+	 */
+	public DHGroup(BigInteger p, BigInteger q, BigInteger g, boolean validated) {
+		this.p = p;
+		this.q = q;
+		this.g = g;
+		this.validated = validated;
+	}
+
+	/**
+	 * Builds a fresh group, using PrimeUtil for the safe prime and the
+	 * generator of its order q subgroup.
+	 *
+	 * @param bits
+	 *            bit length of the Sophie Germain prime q
+	 * @return the new group
+	 */
+	public static DHGroup generate(int bits) {
+		BigInteger[] pair = PrimeUtil.safePrimePair(bits);
+		BigInteger g = PrimeUtil.subgroupGenerator(pair[0], pair[1]);
+		return new DHGroup(pair[1], pair[0], g, true);
+	}
+
+	/**
+	 * Checks that p = 2q+1 with p and q prime and that g generates the
+	 * subgroup of order q or the whole group. The check is only done once
+	 * per group, later calls are free.
+	 *
+	 * @return true if the group is safe to use
+	 */
+	public boolean validate() {
+		if (validated) {
+			return true;
+		}
+		boolean ok = p.equals(q.shiftLeft(1).add(BigInteger.ONE)) && hasGenerator()
+				&& q.isProbablePrime(CERTAINTY) && p.isProbablePrime(CERTAINTY);
+		validated = ok;
+		return ok;
+	}
+
+	/**
+	 * The check on g in validate(): its Legendre symbol, without an
+	 * exponentiation. This only means something once p is known to be a safe
+	 * prime; for any other odd p the Jacobi symbol is +-1 for almost every g.
+	 *
+	 * @return true if g generates the subgroup of order q or the whole group,
+	 *         provided p is a safe prime
+	 */
+	public boolean hasGenerator() {
+		return p.testBit(0) && p.compareTo(BigInteger.valueOf(5)) >= 0
+				&& (PrimeUtil.isSubgroupGenerator(g, q, p) || PrimeUtil.isPrimitiveRoot(g, q, p));
+	}
+
+	/**
+	 * Cheap checks on a group a client sent, in place of validate(), whose
+	 * primality tests cost as much as dozens of key exchanges: p is between
+	 * MIN_RECEIVED_BITS and MAX_RECEIVED_BITS long, is 3 mod 4 as a safe prime
+	 * must be, and passes one Fermat round to base 2, and g passes
+	 * hasGenerator(). This turns away junk and oversized moduli but does not
+	 * prove p is a safe prime. A client that sends a weak group only weakens
+	 * its own session.
+	 *
+	 * @return false if the group is certainly unusable
+	 */
+	public boolean isPlausible() {
+		int bits = p.bitLength();
+		return bits >= MIN_RECEIVED_BITS && bits <= MAX_RECEIVED_BITS && p.testBit(0) && p.testBit(1)
+				&& TWO.modPow(p.subtract(BigInteger.ONE), p).equals(BigInteger.ONE) && hasGenerator();
+	}
+
+	/**
+	 * Checks a public value received from the other side. 1 and p-1 would
+	 * pin the shared secret to 1 or p-1 whatever the exponent.
+	 *
+	 * @param y
+	 *            the public value
+	 * @param p
+	 *            the modulus
+	 * @return true if 1 < y < p-1
+	 */
+	public static boolean isPublicValue(BigInteger y, BigInteger p) {
+		return y.compareTo(BigInteger.ONE) > 0 && y.compareTo(p.subtract(BigInteger.ONE)) < 0;
+	}
+
+	/**
+	 * @return true if the group has been generated or validated in this run
+	 */
+	public boolean isValidated() {
+		return validated;
+	}
+
+	public BigInteger getP() {
+		return p;
+	}
+
+	public BigInteger getQ() {
+		return q;
+	}
+
+	public BigInteger getG() {
+		return g;
+	}
+
+	/**
+	 * @return the bit length of q, as passed to generate()
+	 */
+	public int getBits() {
+		return q.bitLength();
+	}
+}
@@ -0,0 +1,151 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe pool of ready Diffie-Hellman groups. A background producer
+ * thread keeps the pool topped up to its configured depth so that a handshake
+ * normally does not have to wait for prime generation. With a DHGroupStore
+ * the pool starts out with the stored groups and saves the ones it generates.
+ */
+public class DHGroupPool {
+	// default number of groups kept ready
+	public static final int DEFAULT_DEPTH = 4;
+
+	// how long shutdown() waits for generated groups to reach the store
+	private static final long STORE_FLUSH_MILLIS = 2000;
+
+	private final int bits;
+	private final BlockingQueue<DHGroup> groups;
+	private final DHGroupStore store;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final Thread producer;
+	private volatile boolean shutdown;
+
+	/**
+	 * Constructor, starts the background producer.
+	 *
+	 * @param bits
+	 *            bit length of the Sophie Germain prime of each group
+	 * @param depth
+	 *            number of groups to keep ready
+	 */
+	public DHGroupPool(int bits, int depth) {
+		this(bits, depth, null);
+	}
+
+	/**
+	 * Constructor, fills the pool from the store and starts the background
+	 * producer.
+	 *
+	 * @param bits
+	 *            bit length of the Sophie Germain prime of each group
+	 * @param depth
+	 *            number of groups to keep ready
+	 * @param store
+	 *            persistent group store, or null for none
+	 */
+	public DHGroupPool(int bits, int depth, DHGroupStore store) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("Pool depth must be at least 1");
+		}
+		this.bits = bits;
+		this.groups = new ArrayBlockingQueue<DHGroup>(depth);
+		this.store = store;
+		if (store != null) {
+			for (DHGroup group : store.load()) {
+				if (group.getBits() == bits && !groups.offer(group)) {
+					break;
+				}
+			}
+		}
+		this.producer = new Thread(new Runnable() {
+			public void run() {
+				produce();
+			}
+		}, "DHGroupPool-producer");
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	/**
+	 * Producer loop, blocks on put() whenever the pool is full.
+	 */
+	private void produce() {
+		while (!shutdown) {
+			try {
+				DHGroup group = DHGroup.generate(bits);
+				if (store != null) {
+					store.append(group);
+				}
+				groups.put(group);
+			} catch (InterruptedException e) {
+				return;
+			} catch (IllegalStateException e) {
+				// search was interrupted by shutdown()
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Takes a ready group from the pool, or generates one synchronously if the
+	 * pool is empty. Groups that came from the store are validated here, on
+	 * first use, and dropped if they fail.
+	 *
+	 * @return a validated group that has not been handed out before
+	 */
+	public DHGroup take() {
+		DHGroup group;
+		while ((group = groups.poll()) != null) {
+			if (group.validate()) {
+				hits.incrementAndGet();
+				return group;
+			}
+			System.out.println("Discarding invalid stored group.");
+		}
+		misses.incrementAndGet();
+		group = DHGroup.generate(bits);
+		if (store != null) {
+			store.append(group);
+		}
+		return group;
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	/**
+	 * @return number of groups currently ready
+	 */
+	public int size() {
+		return groups.size();
+	}
+
+	/**
+	 * @return number of take() calls served from the pool
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of take() calls that had to generate a group
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Stops the background producer and flushes pending groups to the store.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		producer.interrupt();
+		if (store != null) {
+			store.close(STORE_FLUSH_MILLIS);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps Diffie-Hellman groups in a compact binary file so that a restarted
+ * client has groups ready without searching for a new safe prime.
+ *
+ * The file is a header (magic, version) followed by records of the form
+ * (int bits, short pLen, p, short gLen, g), with p and g as big-endian two's
+ * complement bytes. q is recomputed from p on load. Groups loaded from the
+ * file are not trusted until DHGroup.validate() has been called on them.
+ */
+public class DHGroupStore {
+	// "A3DG"
+	private static final int MAGIC = 0x41334447;
+	private static final short VERSION = 1;
+	private static final int HEADER_LEN = 6;
+
+	// default file name, relative to the working directory
+	public static final String DEFAULT_FILE = "dhgroups.bin";
+
+	// upper bound on the number of groups kept in the file
+	public static final int MAX_GROUPS = 64;
+
+	private final File file;
+	private final ExecutorService writer;
+	private int stored; // records in the file, only touched by the writer
+
+	/**
+	 * Constructor.
+	 *
+	 * @param file
+	 *            the store file, created on the first append
+	 */
+	public DHGroupStore(File file) {
+		this.file = file;
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DHGroupStore-writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Memory-maps the store file and reads every complete record. A record cut
+	 * short by a crash during an append is ignored.
+	 *
+	 * @return the stored groups, not yet validated
+	 */
+	public synchronized List<DHGroup> load() {
+		List<DHGroup> groups = new ArrayList<DHGroup>();
+		if (!file.exists()) {
+			return groups;
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buf.remaining() < HEADER_LEN || buf.getInt() != MAGIC || buf.getShort() != VERSION) {
+				System.out.println("Ignoring unrecognized group store " + file + ".");
+				return groups;
+			}
+			while (buf.hasRemaining()) {
+				try {
+					int bits = buf.getInt();
+					BigInteger p = readNumber(buf);
+					BigInteger g = readNumber(buf);
+					BigInteger q = p.shiftRight(1);
+					if (q.bitLength() == bits) {
+						groups.add(new DHGroup(p, q, g));
+					}
+				} catch (BufferUnderflowException e) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Could not read group store " + file + ".");
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					// nothing left to release
+				}
+			}
+		}
+		stored = groups.size();
+		return groups;
+	}
+
+	/**
+	 * Reads one length-prefixed number.
+	 */
+	private static BigInteger readNumber(MappedByteBuffer buf) {
+		int len = buf.getShort() & 0xffff;
+		if (len > buf.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[len];
+		buf.get(bytes);
+		return new BigInteger(bytes);
+	}
+
+	/**
+	 * Appends a group to the file on the background writer thread. Groups
+	 * beyond MAX_GROUPS are not stored, nor are groups handed in after
+	 * close(), e.g. by a producer that finished its search late.
+	 *
+	 * @param group
+	 *            a validated group
+	 */
+	public void append(final DHGroup group) {
+		try {
+			writer.execute(new Runnable() {
+				public void run() {
+					write(group);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// closed, the group is simply not kept
+		}
+	}
+
+	/**
+	 * Does the actual append, writing the header first for a new file.
+	 */
+	private void write(DHGroup group) {
+		if (stored >= MAX_GROUPS) {
+			return;
+		}
+		DataOutputStream out = null;
+		try {
+			boolean fresh = !file.exists() || file.length() < HEADER_LEN;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, !fresh)));
+			if (fresh) {
+				out.writeInt(MAGIC);
+				out.writeShort(VERSION);
+				stored = 0;
+			}
+			byte[] p = group.getP().toByteArray();
+			byte[] g = group.getG().toByteArray();
+			out.writeInt(group.getBits());
+			out.writeShort(p.length);
+			out.write(p);
+			out.writeShort(g.length);
+			out.write(g);
+			out.flush();
+			stored++;
+		} catch (IOException e) {
+			System.out.println("Could not write group store " + file + ".");
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					System.out.println("Could not close group store " + file + ".");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits for pending appends to reach the file and stops the writer.
+	 *
+	 * @param timeoutMillis
+	 *            how long to wait for pending appends
+	 */
+	public void close(long timeoutMillis) {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
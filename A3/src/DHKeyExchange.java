@@ -0,0 +1,58 @@
+import java.math.BigInteger;
+
+/**
+ * Finite-field Diffie-Hellman in a safe-prime group. Public values are sent as
+ * big-endian two's complement numbers, and the shared secret is g^(ab) mod p
+ * in the same form, as the protocol always had it.
+ */
+public class DHKeyExchange implements KeyExchange {
+	private final DHGroup group;
+	private final boolean tables; // may use FixedBaseExp's table cache
+	private BigInteger exponent; // chosen by publicValue()
+
+	/**
+	 * Constructor, for a group of our own or a named group, whose g^x may go
+	 * through a cached fixed-base table.
+	 *
+	 * @param group
+	 *            the group, already checked or trusted by the caller
+	 */
+	public DHKeyExchange(DHGroup group) {
+		this(group, true);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param group
+	 *            the group, already checked or trusted by the caller
+	 * @param tables
+	 *            false for a group the peer chose, so it cannot make us build
+	 *            fixed-base tables for moduli of its choosing
+	 */
+	public DHKeyExchange(DHGroup group, boolean tables) {
+		this.group = group;
+		this.tables = tables;
+	}
+
+	public byte[] publicValue() {
+		BigInteger p = group.getP();
+		if (exponent == null) {
+			exponent = PrimeUtil.getExponent(p.subtract(BigInteger.valueOf(2)));
+		}
+		BigInteger y = tables ? FixedBaseExp.modPow(group.getG(), exponent, p) : group.getG().modPow(exponent, p);
+		return y.toByteArray();
+	}
+
+	public byte[] agree(byte[] peerPublic) {
+		if (exponent == null || peerPublic.length == 0) {
+			return null;
+		}
+		BigInteger p = group.getP();
+		BigInteger y = new BigInteger(peerPublic);
+		if (!DHGroup.isPublicValue(y, p)) {
+			return null;
+		}
+		return y.modPow(exponent, p).toByteArray();
+	}
+}
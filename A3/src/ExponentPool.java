@@ -0,0 +1,193 @@
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Private Diffie-Hellman exponents drawn from SecureRandom. A background
+ * producer thread keeps blocks of random bytes ready, so a handshake takes its
+ * exponent from memory instead of waiting on the entropy source. If the
+ * blocks run out under load the rest is drawn directly. No byte is handed out
+ * twice, and used bytes are cleared.
+ *
+ * Exponents are full length by default: uniform in [1, p-2]. With
+ * setShortBits() they are only that many bits long, which makes every
+ * exponentiation several times cheaper. In a safe-prime group about twice the
+ * security level is enough (RFC 7919 section 5.2), e.g. 256 bits for the 2048
+ * and 3072-bit groups.
+ */
+public class ExponentPool {
+	// random bytes per block
+	public static final int BLOCK_LEN = 4096;
+
+	// default number of blocks kept ready
+	public static final int DEFAULT_DEPTH = 16;
+
+	// shortest exponent setShortBits() accepts
+	public static final int MIN_SHORT_BITS = 160;
+
+	// drawn beyond the length of p, so reducing mod p-2 has a bias below 2^-64
+	private static final int EXTRA_BITS = 64;
+
+	private static ExponentPool shared;
+
+	private final SecureRandom random = new SecureRandom();
+	private final BlockingQueue<byte[]> blocks;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final Thread producer;
+	private volatile boolean shutdown;
+	private volatile int shortBits;
+
+	// block being handed out and the next unused byte in it, guarded by this
+	private byte[] current;
+	private int pos;
+
+	/**
+	 * Constructor, starts the background producer.
+	 *
+	 * @param depth
+	 *            number of blocks to keep ready
+	 */
+	public ExponentPool(int depth) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("Pool depth must be at least 1");
+		}
+		this.blocks = new ArrayBlockingQueue<byte[]>(depth);
+		this.producer = new Thread(new Runnable() {
+			public void run() {
+				produce();
+			}
+		}, "ExponentPool-producer");
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	/**
+	 * @return the pool used by PrimeUtil.getExponent(), started on first use
+	 */
+	public static synchronized ExponentPool getShared() {
+		if (shared == null) {
+			shared = new ExponentPool(DEFAULT_DEPTH);
+		}
+		return shared;
+	}
+
+	/**
+	 * Producer loop, blocks on put() whenever the pool is full.
+	 */
+	private void produce() {
+		while (!shutdown) {
+			byte[] block = new byte[BLOCK_LEN];
+			random.nextBytes(block);
+			try {
+				blocks.put(block);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Uses short exponents from now on.
+	 *
+	 * @param bits
+	 *            exponent length, at least MIN_SHORT_BITS, or 0 for full
+	 *            length
+	 */
+	public void setShortBits(int bits) {
+		if (bits != 0 && bits < MIN_SHORT_BITS) {
+			throw new IllegalArgumentException("Short exponents must have at least " + MIN_SHORT_BITS + " bits");
+		}
+		shortBits = bits;
+	}
+
+	/**
+	 * @return length of short exponents, 0 if they are full length
+	 */
+	public int getShortBits() {
+		return shortBits;
+	}
+
+	/**
+	 * Draws a private exponent.
+	 *
+	 * @param pMinus2
+	 *            p-2 for the group's prime p
+	 * @return an exponent in [1, p-2], shorter if setShortBits() asks for it
+	 */
+	public BigInteger exponent(BigInteger pMinus2) {
+		int length = pMinus2.bitLength();
+		int bits = shortBits > 0 && shortBits < length ? shortBits : length + EXTRA_BITS;
+		byte[] bytes = next((bits + 7) / 8);
+		BigInteger r = new BigInteger(1, bytes).shiftRight(bytes.length * 8 - bits);
+		Arrays.fill(bytes, (byte) 0);
+		return r.mod(pMinus2).add(BigInteger.ONE);
+	}
+
+	/**
+	 * Takes len unused random bytes, from the ready blocks while they last.
+	 * A shortfall is drawn outside the lock.
+	 */
+	private byte[] next(int len) {
+		byte[] out = new byte[len];
+		int done = 0;
+		synchronized (this) {
+			while (done < len) {
+				if (current == null || pos == current.length) {
+					current = blocks.poll();
+					pos = 0;
+					if (current == null) {
+						break;
+					}
+				}
+				int n = Math.min(len - done, current.length - pos);
+				System.arraycopy(current, pos, out, done, n);
+				Arrays.fill(current, pos, pos + n, (byte) 0);
+				pos += n;
+				done += n;
+			}
+		}
+		if (done < len) {
+			misses.incrementAndGet();
+			byte[] rest = new byte[len - done];
+			random.nextBytes(rest);
+			System.arraycopy(rest, 0, out, done, rest.length);
+			Arrays.fill(rest, (byte) 0);
+		} else {
+			hits.incrementAndGet();
+		}
+		return out;
+	}
+
+	/**
+	 * @return number of blocks currently ready
+	 */
+	public int size() {
+		return blocks.size();
+	}
+
+	/**
+	 * @return number of exponents served from the ready blocks
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of exponents that had to draw from SecureRandom directly
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Stops the background producer.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		producer.interrupt();
+	}
+}
@@ -0,0 +1,353 @@
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Fixed-base modular exponentiation. For a base g and modulus p that are used
+ * over and over, the powers g^(d * 2^(w*i)) mod p are precomputed for every
+ * w-bit digit d and digit position i. g^e mod p is then one table lookup and
+ * one modular multiplication per digit of e, with no squarings at all.
+ *
+ * Tables are shared through a small LRU cache keyed by (g, p). A table is only
+ * built once the same (g, p) has been seen TABLE_THRESHOLD times, so a group
+ * that is used once never pays for the precomputation. Groups known to be
+ * used for good, such as the named groups a server serves, can be pinned
+ * instead: their tables are built in the background and never evicted.
+ */
+public class FixedBaseExp {
+	// bits per exponent digit
+	public static final int DEFAULT_WINDOW = 6;
+
+	// number of tables kept in the cache
+	public static final int CACHE_SIZE = 8;
+
+	// uses of a (g, p) pair before a table is built for it
+	public static final int TABLE_THRESHOLD = 2;
+
+	// larger moduli never get a cached table, it would take hundreds of MB
+	public static final int MAX_TABLE_BITS = 8192;
+
+	private static final long LIMB = 0xffffffffL;
+
+	private static final Map<Key, Entry> cache = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	// pinned tables, done once built
+	private static final ConcurrentHashMap<Key, Future<FixedBaseExp>> pinned = new ConcurrentHashMap<Key, Future<FixedBaseExp>>();
+
+	private final BigInteger p;
+	private final int window;
+	private final int maxBits;
+
+	// Montgomery arithmetic with 32-bit limbs, least significant first
+	private final int n; // limbs in p
+	private final int[] mod; // p
+	private final int n0inv; // -p^-1 mod 2^32
+	private final int[] one; // R mod p, i.e. 1 in Montgomery form
+	private final int[][][] table; // table[i][d] = g^(d * 2^(window*i)) * R mod p
+
+	/**
+	 * Constructor, builds the table.
+	 *
+	 * @param g
+	 *            the base
+	 * @param p
+	 *            an odd modulus
+	 * @param maxBits
+	 *            largest exponent bit length the table has to cover
+	 * @param window
+	 *            bits per exponent digit
+	 */
+	public FixedBaseExp(BigInteger g, BigInteger p, int maxBits, int window) {
+		if (!p.testBit(0)) {
+			throw new IllegalArgumentException("Modulus must be odd");
+		}
+		this.p = p;
+		this.window = window;
+		this.maxBits = maxBits;
+		this.n = (p.bitLength() + 31) / 32;
+		this.mod = toLimbs(p, n);
+		this.n0inv = -BigInteger.valueOf(mod[0] & LIMB).modInverse(BigInteger.ONE.shiftLeft(32)).intValue();
+		this.one = toLimbs(BigInteger.ONE.shiftLeft(32 * n).mod(p), n);
+
+		int digits = (maxBits + window - 1) / window;
+		int size = 1 << window;
+		table = new int[digits][size][];
+		int[] base = toMontgomery(g.mod(p));
+		int[] t = new int[n + 2];
+		for (int i = 0; i < digits; i++) {
+			table[i][0] = one;
+			table[i][1] = base;
+			for (int d = 2; d < size; d++) {
+				table[i][d] = new int[n];
+				montMul(table[i][d - 1], base, table[i][d], t);
+			}
+			// next position's base is g^(2^(window*(i+1))) = base^(2^window)
+			int[] next = new int[n];
+			montMul(table[i][size - 1], base, next, t);
+			base = next;
+		}
+	}
+
+	/**
+	 * Computes g^e mod p from the table.
+	 *
+	 * @param e
+	 *            a non-negative exponent of at most maxBits bits
+	 * @return g^e mod p
+	 */
+	public BigInteger pow(BigInteger e) {
+		if (e.signum() < 0 || e.bitLength() > maxBits) {
+			throw new IllegalArgumentException("Exponent out of range for table");
+		}
+		int[] acc = one.clone();
+		int[] tmp = new int[n];
+		int[] t = new int[n + 2];
+		int digits = (e.bitLength() + window - 1) / window;
+		for (int i = 0; i < digits; i++) {
+			int d = digit(e, i * window);
+			if (d != 0) {
+				montMul(acc, table[i][d], tmp, t);
+				int[] swap = acc;
+				acc = tmp;
+				tmp = swap;
+			}
+		}
+		// multiplying by plain 1 takes the result out of Montgomery form
+		int[] plainOne = new int[n];
+		plainOne[0] = 1;
+		montMul(acc, plainOne, tmp, t);
+		return fromLimbs(tmp);
+	}
+
+	/**
+	 * Bits [from, from + window) of e.
+	 */
+	private int digit(BigInteger e, int from) {
+		int d = 0;
+		for (int b = window - 1; b >= 0; b--) {
+			d = (d << 1) | (e.testBit(from + b) ? 1 : 0);
+		}
+		return d;
+	}
+
+	/**
+	 * Montgomery product out = a * b / R mod p (CIOS method).
+	 *
+	 * @param t
+	 *            scratch space of n + 2 limbs
+	 */
+	private void montMul(int[] a, int[] b, int[] out, int[] t) {
+		Arrays.fill(t, 0);
+		for (int i = 0; i < n; i++) {
+			long ai = a[i] & LIMB;
+			long c = 0;
+			for (int j = 0; j < n; j++) {
+				long s = (t[j] & LIMB) + ai * (b[j] & LIMB) + c;
+				t[j] = (int) s;
+				c = s >>> 32;
+			}
+			long s = (t[n] & LIMB) + c;
+			t[n] = (int) s;
+			t[n + 1] = (int) (s >>> 32);
+
+			long m = (t[0] * n0inv) & LIMB;
+			s = (t[0] & LIMB) + m * (mod[0] & LIMB);
+			c = s >>> 32;
+			for (int j = 1; j < n; j++) {
+				s = (t[j] & LIMB) + m * (mod[j] & LIMB) + c;
+				t[j - 1] = (int) s;
+				c = s >>> 32;
+			}
+			s = (t[n] & LIMB) + c;
+			t[n - 1] = (int) s;
+			t[n] = t[n + 1] + (int) (s >>> 32);
+		}
+		// t < 2p here, one conditional subtraction brings it below p
+		if (t[n] != 0 || compare(t, mod) >= 0) {
+			long borrow = 0;
+			for (int j = 0; j < n; j++) {
+				long s = (t[j] & LIMB) - (mod[j] & LIMB) - borrow;
+				out[j] = (int) s;
+				borrow = (s >>> 63);
+			}
+		} else {
+			System.arraycopy(t, 0, out, 0, n);
+		}
+	}
+
+	/**
+	 * Compares the low n limbs of a with b.
+	 */
+	private int compare(int[] a, int[] b) {
+		for (int j = n - 1; j >= 0; j--) {
+			if (a[j] != b[j]) {
+				return (a[j] & LIMB) < (b[j] & LIMB) ? -1 : 1;
+			}
+		}
+		return 0;
+	}
+
+	private int[] toMontgomery(BigInteger x) {
+		return toLimbs(x.shiftLeft(32 * n).mod(p), n);
+	}
+
+	private static int[] toLimbs(BigInteger x, int n) {
+		int[] limbs = new int[n];
+		for (int j = 0; j < n; j++) {
+			limbs[j] = x.shiftRight(32 * j).intValue();
+		}
+		return limbs;
+	}
+
+	private static BigInteger fromLimbs(int[] limbs) {
+		byte[] bytes = new byte[limbs.length * 4 + 1];
+		for (int j = 0; j < limbs.length; j++) {
+			int k = bytes.length - 1 - 4 * j;
+			bytes[k] = (byte) limbs[j];
+			bytes[k - 1] = (byte) (limbs[j] >>> 8);
+			bytes[k - 2] = (byte) (limbs[j] >>> 16);
+			bytes[k - 3] = (byte) (limbs[j] >>> 24);
+		}
+		return new BigInteger(bytes);
+	}
+
+	/**
+	 * Computes g^e mod p, through a cached table once (g, p) has been used
+	 * often enough, otherwise with BigInteger.modPow. Only for moduli we chose
+	 * or trust: every distinct p may cost a table.
+	 *
+	 * @param g
+	 *            the base
+	 * @param e
+	 *            the exponent
+	 * @param p
+	 *            the modulus
+	 * @return g^e mod p
+	 */
+	public static BigInteger modPow(BigInteger g, BigInteger e, BigInteger p) {
+		if (e.signum() < 0 || e.bitLength() > p.bitLength() || !p.testBit(0) || p.bitLength() > MAX_TABLE_BITS) {
+			return g.modPow(e, p);
+		}
+		Key key = new Key(g, p);
+		Future<FixedBaseExp> pin = pinned.get(key);
+		if (pin != null) {
+			// plain modPow until the background build is done
+			return pin.isDone() ? done(pin).pow(e) : g.modPow(e, p);
+		}
+		Entry entry;
+		synchronized (cache) {
+			entry = cache.get(key);
+			if (entry == null) {
+				entry = new Entry();
+				cache.put(key, entry);
+			}
+			entry.uses++;
+		}
+		FixedBaseExp exp = entry.get(key);
+		if (exp == null) {
+			return g.modPow(e, p);
+		}
+		return exp.pow(e);
+	}
+
+	/**
+	 * Keeps a table for (g, p) for good, outside the LRU cache. The table is
+	 * built on a background thread the first time, and modPow() uses plain
+	 * BigInteger.modPow until it is ready. Pinning a pair again does nothing.
+	 *
+	 * @param g
+	 *            the base
+	 * @param p
+	 *            an odd modulus
+	 */
+	public static void pin(final BigInteger g, final BigInteger p) {
+		Key key = new Key(g, p);
+		if (pinned.containsKey(key)) {
+			return;
+		}
+		FutureTask<FixedBaseExp> build = new FutureTask<FixedBaseExp>(new Callable<FixedBaseExp>() {
+			public FixedBaseExp call() {
+				return new FixedBaseExp(g, p, p.bitLength(), DEFAULT_WINDOW);
+			}
+		});
+		if (pinned.putIfAbsent(key, build) == null) {
+			Thread t = new Thread(build, "FixedBaseExp-pin");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private static FixedBaseExp done(Future<FixedBaseExp> pin) {
+		try {
+			return pin.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not build pinned table", e.getCause());
+		}
+	}
+
+	/**
+	 * Drops all cached tables. Pinned tables are kept.
+	 */
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Cache key, a (g, p) pair.
+	 */
+	private static final class Key {
+		final BigInteger g;
+		final BigInteger p;
+
+		Key(BigInteger g, BigInteger p) {
+			this.g = g;
+			this.p = p;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return g.equals(k.g) && p.equals(k.p);
+		}
+
+		public int hashCode() {
+			return 31 * g.hashCode() + p.hashCode();
+		}
+	}
+
+	/**
+	 * Cache entry, counts uses and builds the table once.
+	 */
+	private static final class Entry {
+		int uses; // guarded by cache
+		private FixedBaseExp table;
+
+		synchronized FixedBaseExp get(Key key) {
+			if (table == null) {
+				synchronized (cache) {
+					if (uses < TABLE_THRESHOLD) {
+						return null;
+					}
+				}
+				table = new FixedBaseExp(key.g, key.p, key.p.bitLength(), DEFAULT_WINDOW);
+			}
+			return table;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads length-prefixed frames from a channel. A frame's length is checked
+ * against the caller's limit before anything is allocated, and the body is
+ * read straight into a buffer from a shared pool and handed out as is, so a
+ * frame is not copied between the socket and the cipher. Frames too large for
+ * the pool get a buffer of their own that grows only as data actually
+ * arrives, so a peer claiming a huge frame costs no more memory than it
+ * sends. A channel that ends, inside a frame or between frames, is reported
+ * as an EOFException.
+ *
+ * Works on blocking and non-blocking channels; on a non-blocking channel
+ * read() returns null until a whole frame is in. Not thread-safe, and a frame
+ * stays valid until release() is called.
+ */
+public class FrameReader {
+	// first buffer given to a frame larger than the pooled buffers
+	private static final int LARGE_FRAME_START = 1024 * 1024;
+
+	private static final BufferPool pool = new BufferPool(CryptoUtilities.STREAM_FRAME_LEN);
+
+	private final ReadableByteChannel channel;
+	private final ByteBuffer header = ByteBuffer.allocate(4);
+	private ByteBuffer body; // frame being read, null between frames
+	private int expected; // length of the frame being read
+	private byte[] held; // pooled array of the frame handed out, until release()
+
+	/**
+	 * Constructor.
+	 *
+	 * @param channel
+	 *            the channel to read from
+	 */
+	public FrameReader(ReadableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Reads the next frame.
+	 *
+	 * @param maxLen
+	 *            largest frame accepted
+	 * @return the frame, array-backed from index 0 and with its limit at the
+	 *         frame's end, or null if a non-blocking channel has no whole
+	 *         frame yet
+	 * @throws IOException
+	 *             if the frame is too large, the channel ends or fails
+	 */
+	public ByteBuffer read(int maxLen) throws IOException {
+		if (body == null) {
+			if (!fill(header)) {
+				return null;
+			}
+			header.flip();
+			expected = header.getInt();
+			header.clear();
+			if (expected < 0 || expected > maxLen) {
+				throw new IOException("Frame of " + expected + " bytes exceeds the " + maxLen + " byte limit");
+			}
+			if (expected <= pool.getBufferSize()) {
+				body = ByteBuffer.wrap(pool.get(), 0, expected);
+			} else {
+				body = ByteBuffer.allocate(Math.min(expected, LARGE_FRAME_START));
+			}
+		}
+		while (true) {
+			if (!fill(body)) {
+				return null;
+			}
+			if (body.position() == expected) {
+				break;
+			}
+			// a large frame has filled its buffer, grow it for the rest
+			ByteBuffer larger = ByteBuffer.allocate((int) Math.min(expected, 2L * body.capacity()));
+			body.flip();
+			larger.put(body);
+			larger.limit(expected);
+			body = larger;
+		}
+
+		ByteBuffer frame = body;
+		frame.flip();
+		body = null;
+		held = frame.capacity() == pool.getBufferSize() ? frame.array() : null;
+		return frame;
+	}
+
+	/**
+	 * Reads until the buffer is full.
+	 *
+	 * @return false if a non-blocking channel has nothing more for now
+	 */
+	private boolean fill(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf);
+			if (n < 0) {
+				throw new EOFException(buf == header && header.position() == 0 ? "Channel closed"
+						: "Channel ended inside a frame");
+			}
+			if (n == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the last frame's buffer to the pool. The frame must not be used
+	 * afterwards.
+	 */
+	public void release() {
+		pool.release(held);
+		held = null;
+	}
+
+	/**
+	 * Releases a partly read frame. A frame already handed out must still be
+	 * released by whoever is using it.
+	 */
+	public void close() {
+		if (body != null && body.capacity() == pool.getBufferSize()) {
+			pool.release(body.array());
+		}
+		body = null;
+	}
+}
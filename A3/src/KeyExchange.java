@@ -0,0 +1,27 @@
+/**
+ * One side of a key agreement. getKey() on the client and the servers runs
+ * the same three steps whatever the mechanism: send this side's public value,
+ * receive the other side's, and turn the two into a shared secret that
+ * CryptoUtilities.key_from_seed() makes the session key from.
+ *
+ * Implementations are finite-field Diffie-Hellman (DHKeyExchange), for a
+ * group the client sends or a named one, and X25519 (X25519KeyExchange). The
+ * client picks one by name through NamedGroups; a client that names nothing
+ * sends its own DH group, as before. An instance is used for one exchange.
+ */
+public interface KeyExchange {
+	/**
+	 * @return this side's public value, as sent on the wire; the private
+	 *         value is chosen on the first call
+	 */
+	byte[] publicValue();
+
+	/**
+	 * Completes the exchange.
+	 *
+	 * @param peerPublic
+	 *            the other side's public value, as received
+	 * @return the shared secret, or null if the public value is not valid
+	 */
+	byte[] agree(byte[] peerPublic);
+}
@@ -0,0 +1,205 @@
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Well-known groups that client and server can agree on by name instead of
+ * the client sending a prime of its own: the MODP groups of RFC 3526, the
+ * FFDHE groups of RFC 7919 and, where the JVM has it, X25519. Nothing has to
+ * be generated or checked for them, and since every connection uses the same
+ * few groups the server keeps a fixed-base table for each finite-field group
+ * it serves (see FixedBaseExp.pin()).
+ *
+ * A client names its group by sending HEADER and the name in place of the
+ * prime. A server that knows the group answers with its public value and the
+ * client with its own; otherwise the server answers UNKNOWN and the client
+ * sends a prime and generator of its own, as before. Old servers do not know the message at
+ * all, so the client only names a group when told to.
+ *
+ * All the finite-field primes are safe primes p = 2q+1 with generator 2, which spans the
+ * subgroup of order q rather than the whole group, so they are built as
+ * already validated instead of going through DHGroup.validate().
+ */
+public class NamedGroups {
+	public static final String HEADER = "\0GROUP ";
+	public static final String UNKNOWN = "\0NOGROUP";
+
+	// groups by name, in order of size
+	private static final Map<String, DHGroup> groups = new LinkedHashMap<String, DHGroup>();
+
+	// RFC 3526 section 3, 2048-bit MODP group
+	private static final String MODP2048_P = "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74"
+			+ "020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F1437"
+			+ "4FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED"
+			+ "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF05"
+			+ "98DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB"
+			+ "9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B"
+			+ "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF695581718"
+			+ "3995497CEA956AE515D2261898FA051015728E5A8AACAA68FFFFFFFFFFFFFFFF";
+
+	// RFC 3526 section 4, 3072-bit MODP group
+	private static final String MODP3072_P = "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74"
+			+ "020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F1437"
+			+ "4FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED"
+			+ "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF05"
+			+ "98DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB"
+			+ "9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B"
+			+ "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF695581718"
+			+ "3995497CEA956AE515D2261898FA051015728E5A8AAAC42DAD33170D04507A33"
+			+ "A85521ABDF1CBA64ECFB850458DBEF0A8AEA71575D060C7DB3970F85A6E1E4C7"
+			+ "ABF5AE8CDB0933D71E8C94E04A25619DCEE3D2261AD2EE6BF12FFA06D98A0864"
+			+ "D87602733EC86A64521F2B18177B200CBBE117577A615D6C770988C0BAD946E2"
+			+ "08E24FA074E5AB3143DB5BFCE0FD108E4B82D120A93AD2CAFFFFFFFFFFFFFFFF";
+
+	// RFC 3526 section 5, 4096-bit MODP group
+	private static final String MODP4096_P = "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74"
+			+ "020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F1437"
+			+ "4FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED"
+			+ "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF05"
+			+ "98DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB"
+			+ "9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B"
+			+ "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF695581718"
+			+ "3995497CEA956AE515D2261898FA051015728E5A8AAAC42DAD33170D04507A33"
+			+ "A85521ABDF1CBA64ECFB850458DBEF0A8AEA71575D060C7DB3970F85A6E1E4C7"
+			+ "ABF5AE8CDB0933D71E8C94E04A25619DCEE3D2261AD2EE6BF12FFA06D98A0864"
+			+ "D87602733EC86A64521F2B18177B200CBBE117577A615D6C770988C0BAD946E2"
+			+ "08E24FA074E5AB3143DB5BFCE0FD108E4B82D120A92108011A723C12A787E6D7"
+			+ "88719A10BDBA5B2699C327186AF4E23C1A946834B6150BDA2583E9CA2AD44CE8"
+			+ "DBBBC2DB04DE8EF92E8EFC141FBECAA6287C59474E6BC05D99B2964FA090C3A2"
+			+ "233BA186515BE7ED1F612970CEE2D7AFB81BDD762170481CD0069127D5B05AA9"
+			+ "93B4EA988D8FDDC186FFB7DC90A6C08F4DF435C934063199FFFFFFFFFFFFFFFF";
+
+	// RFC 7919 appendix A.1, ffdhe2048
+	private static final String FFDHE2048_P = "FFFFFFFFFFFFFFFFADF85458A2BB4A9AAFDC5620273D3CF1D8B9C583CE2D3695"
+			+ "A9E13641146433FBCC939DCE249B3EF97D2FE363630C75D8F681B202AEC4617A"
+			+ "D3DF1ED5D5FD65612433F51F5F066ED0856365553DED1AF3B557135E7F57C935"
+			+ "984F0C70E0E68B77E2A689DAF3EFE8721DF158A136ADE73530ACCA4F483A797A"
+			+ "BC0AB182B324FB61D108A94BB2C8E3FBB96ADAB760D7F4681D4F42A3DE394DF4"
+			+ "AE56EDE76372BB190B07A7C8EE0A6D709E02FCE1CDF7E2ECC03404CD28342F61"
+			+ "9172FE9CE98583FF8E4F1232EEF28183C3FE3B1B4C6FAD733BB5FCBC2EC22005"
+			+ "C58EF1837D1683B2C6F34A26C1B2EFFA886B423861285C97FFFFFFFFFFFFFFFF";
+
+	// RFC 7919 appendix A.2, ffdhe3072
+	private static final String FFDHE3072_P = "FFFFFFFFFFFFFFFFADF85458A2BB4A9AAFDC5620273D3CF1D8B9C583CE2D3695"
+			+ "A9E13641146433FBCC939DCE249B3EF97D2FE363630C75D8F681B202AEC4617A"
+			+ "D3DF1ED5D5FD65612433F51F5F066ED0856365553DED1AF3B557135E7F57C935"
+			+ "984F0C70E0E68B77E2A689DAF3EFE8721DF158A136ADE73530ACCA4F483A797A"
+			+ "BC0AB182B324FB61D108A94BB2C8E3FBB96ADAB760D7F4681D4F42A3DE394DF4"
+			+ "AE56EDE76372BB190B07A7C8EE0A6D709E02FCE1CDF7E2ECC03404CD28342F61"
+			+ "9172FE9CE98583FF8E4F1232EEF28183C3FE3B1B4C6FAD733BB5FCBC2EC22005"
+			+ "C58EF1837D1683B2C6F34A26C1B2EFFA886B4238611FCFDCDE355B3B6519035B"
+			+ "BC34F4DEF99C023861B46FC9D6E6C9077AD91D2691F7F7EE598CB0FAC186D91C"
+			+ "AEFE130985139270B4130C93BC437944F4FD4452E2D74DD364F2E21E71F54BFF"
+			+ "5CAE82AB9C9DF69EE86D2BC522363A0DABC521979B0DEADA1DBF9A42D5C4484E"
+			+ "0ABCD06BFA53DDEF3C1B20EE3FD59D7C25E41D2B66C62E37FFFFFFFFFFFFFFFF";
+
+	// RFC 7919 appendix A.3, ffdhe4096
+	private static final String FFDHE4096_P = "FFFFFFFFFFFFFFFFADF85458A2BB4A9AAFDC5620273D3CF1D8B9C583CE2D3695"
+			+ "A9E13641146433FBCC939DCE249B3EF97D2FE363630C75D8F681B202AEC4617A"
+			+ "D3DF1ED5D5FD65612433F51F5F066ED0856365553DED1AF3B557135E7F57C935"
+			+ "984F0C70E0E68B77E2A689DAF3EFE8721DF158A136ADE73530ACCA4F483A797A"
+			+ "BC0AB182B324FB61D108A94BB2C8E3FBB96ADAB760D7F4681D4F42A3DE394DF4"
+			+ "AE56EDE76372BB190B07A7C8EE0A6D709E02FCE1CDF7E2ECC03404CD28342F61"
+			+ "9172FE9CE98583FF8E4F1232EEF28183C3FE3B1B4C6FAD733BB5FCBC2EC22005"
+			+ "C58EF1837D1683B2C6F34A26C1B2EFFA886B4238611FCFDCDE355B3B6519035B"
+			+ "BC34F4DEF99C023861B46FC9D6E6C9077AD91D2691F7F7EE598CB0FAC186D91C"
+			+ "AEFE130985139270B4130C93BC437944F4FD4452E2D74DD364F2E21E71F54BFF"
+			+ "5CAE82AB9C9DF69EE86D2BC522363A0DABC521979B0DEADA1DBF9A42D5C4484E"
+			+ "0ABCD06BFA53DDEF3C1B20EE3FD59D7C25E41D2B669E1EF16E6F52C3164DF4FB"
+			+ "7930E9E4E58857B6AC7D5F42D69F6D187763CF1D5503400487F55BA57E31CC7A"
+			+ "7135C886EFB4318AED6A1E012D9E6832A907600A918130C46DC778F971AD0038"
+			+ "092999A333CB8B7A1A1DB93D7140003C2A4ECEA9F98D0ACC0A8291CDCEC97DCF"
+			+ "8EC9B55A7F88A46B4DB5A851F44182E1C68A007E5E655F6AFFFFFFFFFFFFFFFF";
+
+	static {
+		add("modp2048", MODP2048_P);
+		add("modp3072", MODP3072_P);
+		add("modp4096", MODP4096_P);
+		add("ffdhe2048", FFDHE2048_P);
+		add("ffdhe3072", FFDHE3072_P);
+		add("ffdhe4096", FFDHE4096_P);
+	}
+
+	private static void add(String name, String hex) {
+		BigInteger p = new BigInteger(hex, 16);
+		groups.put(name, new DHGroup(p, p.shiftRight(1), BigInteger.valueOf(2), true));
+	}
+
+	/**
+	 * @param name
+	 *            a group name, e.g. "ffdhe2048"
+	 * @return the finite-field group, or null if there is none by that name
+	 */
+	public static DHGroup get(String name) {
+		return groups.get(name);
+	}
+
+	/**
+	 * @param name
+	 *            a group name
+	 * @return true if this side can run the group
+	 */
+	public static boolean isKnown(String name) {
+		return groups.containsKey(name) || (X25519KeyExchange.NAME.equals(name) && X25519KeyExchange.isAvailable());
+	}
+
+	/**
+	 * @return the names of all groups this side can run, finite-field groups
+	 *         in order of size first
+	 */
+	public static List<String> names() {
+		List<String> names = new ArrayList<String>(groups.keySet());
+		if (X25519KeyExchange.isAvailable()) {
+			names.add(X25519KeyExchange.NAME);
+		}
+		return names;
+	}
+
+	/**
+	 * Starts a key exchange in a named group.
+	 *
+	 * @param name
+	 *            a group name
+	 * @param server
+	 *            true on a server, which sees the group again and again and
+	 *            keeps a fixed-base table for it
+	 * @return the exchange, or null if this side cannot run the group
+	 */
+	public static KeyExchange keyExchange(String name, boolean server) {
+		if (!isKnown(name)) {
+			return null;
+		}
+		if (X25519KeyExchange.NAME.equals(name)) {
+			return new X25519KeyExchange();
+		}
+		DHGroup group = groups.get(name);
+		if (server) {
+			FixedBaseExp.pin(group.getG(), group.getP());
+		}
+		return new DHKeyExchange(group);
+	}
+
+	/**
+	 * @param name
+	 *            the group's name
+	 * @return the message naming the group, sent in place of the prime
+	 */
+	public static byte[] requestMessage(String name) {
+		return (HEADER + name).getBytes();
+	}
+
+	/**
+	 * @param message
+	 *            the first message of a key exchange
+	 * @return the name of the requested group, or null if the message is a
+	 *         prime
+	 */
+	public static String requested(byte[] message) {
+		if (!CryptoUtilities.startsWith(message, HEADER)) {
+			return null;
+		}
+		return new String(message).substring(HEADER.length());
+	}
+}
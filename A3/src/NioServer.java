@@ -0,0 +1,929 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Non-blocking version of the secure file transfer server. A few event loop
+ * threads, each with its own Selector, do all the socket IO. Every connection
+ * is a small state machine that is fed one complete frame at a time. Frames
+ * are handled on a separate worker pool, since that is where the modPow and
+ * AES work happens, and the connection stops reading until its frame is done.
+ *
+ * The protocol is the one spoken by Client and ServerThread, including the
+ * streamed file mode. Unlike the thread-per-connection server it does not
+ * stop after the first transfer.
+ */
+public class NioServer {
+	// default number of event loop threads
+	public static final int DEFAULT_LOOPS = 2;
+
+	// largest handshake, file name or file size message accepted
+	public static final int MAX_CONTROL_FRAME = CryptoUtilities.MAX_CONTROL_LEN;
+
+	// largest single-message (non-streamed) file accepted, with MAC and padding
+	public static final int MAX_LEGACY_FRAME = 64 * 1024 * 1024;
+
+	// how often drain() checks for remaining connections
+	private static final long DRAIN_POLL_MILLIS = 100;
+
+	private final ServerSocketChannel serverChannel;
+	private final Selector acceptSelector;
+	private final EventLoop[] loops;
+	private final ExecutorService workers;
+	private final BufferPool framePool = new BufferPool(CryptoUtilities.STREAM_FRAME_LEN);
+	private final AtomicInteger active = new AtomicInteger();
+	private final boolean debug;
+	private volatile boolean shutdown;
+	private volatile boolean accepting = true;
+	private volatile int maxConnections = Integer.MAX_VALUE;
+	private volatile TicketCache tickets = new TicketCache(); // null to always do the full exchange
+	private int clientcounter; // id numbers for the clients
+	private int nextLoop;
+
+	/**
+	 * Utility for printing protocol messages
+	 *
+	 * @param s
+	 *            protocol message to be printed
+	 */
+	private void debug(String s) {
+		if (debug) {
+			System.out.println("Debug Server: " + s);
+		}
+	}
+
+	/**
+	 * Constructor, binds the server socket.
+	 *
+	 * @param port
+	 *            The port to listen on.
+	 * @param setDebug
+	 *            true to print protocol messages
+	 * @param loopCount
+	 *            number of event loop threads
+	 * @param workerCount
+	 *            number of threads for cryptographic and file work
+	 * @throws IOException
+	 *             if the port cannot be bound
+	 */
+	public NioServer(int port, boolean setDebug, int loopCount, int workerCount) throws IOException {
+		debug = setDebug;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		acceptSelector = Selector.open();
+		serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+		loops = new EventLoop[Math.max(1, loopCount)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+		}
+		workers = Executors.newFixedThreadPool(Math.max(1, workerCount), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "NioServer-worker-" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		System.out.println("Server IP address: " + serverChannel.socket().getInetAddress().getHostAddress()
+				+ ",  port " + port + " (non-blocking, " + loops.length + " event loops)");
+	}
+
+	/**
+	 * Caps the number of open connections. Clients over the cap are told to
+	 * retry later. Connections cost no thread here, so there is no queue.
+	 *
+	 * @param max
+	 *            most connections served at once
+	 */
+	public void setMaxConnections(int max) {
+		maxConnections = max;
+	}
+
+	/**
+	 * Replaces the default ticket cache.
+	 *
+	 * @param cache
+	 *            the cache for session tickets, or null to turn session
+	 *            resumption off
+	 */
+	public void setTickets(TicketCache cache) {
+		tickets = cache;
+	}
+
+	/**
+	 * @return the ticket cache, or null if session resumption is off
+	 */
+	public TicketCache getTickets() {
+		return tickets;
+	}
+
+	/**
+	 * @return number of connections currently open
+	 */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * Starts the event loops and accepts connections until shutdown() is
+	 * called. New connections are handed to the loops round-robin.
+	 */
+	public void listen() {
+		for (int i = 0; i < loops.length; i++) {
+			Thread t = new Thread(loops[i], "NioServer-loop-" + i);
+			t.start();
+		}
+
+		while (!shutdown) {
+			try {
+				acceptSelector.select();
+				acceptSelector.selectedKeys().clear();
+				SocketChannel client;
+				while ((client = serverChannel.accept()) != null) {
+					System.out.println("Client on machine "
+							+ ((InetSocketAddress) client.getRemoteAddress()).getAddress().getHostAddress()
+							+ " has connected on port " + client.socket().getLocalPort() + ".");
+					if (active.get() >= maxConnections) {
+						// still blocking, the greeting fits in an empty send buffer
+						Server.reject(client.socket());
+						continue;
+					}
+					client.configureBlocking(false);
+					EventLoop loop = loops[nextLoop++ % loops.length];
+					loop.register(new Session(client, loop, clientcounter++));
+				}
+			} catch (ClosedSelectorException e) {
+				break;
+			} catch (IOException e) {
+				if (!accepting) {
+					// drain() closed the channel, keep the loops running until it is done
+					waitForShutdown();
+				} else if (!shutdown) {
+					System.out.println("Error accepting connection.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true once shutdown() or drain() has been called
+	 */
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	/**
+	 * Graceful shutdown. Stops accepting new clients, waits for the open
+	 * connections to finish, then shuts down.
+	 *
+	 * @param timeoutMillis
+	 *            how long to wait for transfers in progress
+	 */
+	public void drain(long timeoutMillis) {
+		System.out.println("Draining Server, waiting for " + active.get() + " client(s).");
+		accepting = false;
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			System.out.println("Could not close server socket.");
+		}
+		// the socket is only released once the accept thread selects again
+		acceptSelector.wakeup();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (active.get() > 0 && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(DRAIN_POLL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		shutdown();
+	}
+
+	/**
+	 * Parks the accept thread while drain() lets connections finish.
+	 */
+	private void waitForShutdown() {
+		while (!shutdown) {
+			try {
+				Thread.sleep(DRAIN_POLL_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting, closes every connection and stops the threads.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		System.out.println("Shutting Down Server.");
+		try {
+			serverChannel.close();
+			acceptSelector.close();
+		} catch (IOException e) {
+			System.out.println("Could not close server socket.");
+		}
+		for (int i = 0; i < loops.length; i++) {
+			loops[i].selector.wakeup();
+		}
+		workers.shutdown();
+	}
+
+	/**
+	 * One event loop thread. Other threads talk to it only through execute().
+	 */
+	private class EventLoop implements Runnable {
+		final Selector selector;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		/**
+		 * Runs the task on this loop's thread.
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Starts watching a new connection.
+		 */
+		void register(final Session session) {
+			execute(new Runnable() {
+				public void run() {
+					try {
+						session.selectionKey = session.channel.register(selector, SelectionKey.OP_READ, session);
+						active.incrementAndGet();
+						session.send(AdmissionController.GREETING_OK.getBytes());
+					} catch (IOException e) {
+						session.close();
+					}
+				}
+			});
+		}
+
+		public void run() {
+			while (!shutdown) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					System.out.println("Event loop selector failed.");
+					break;
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					Session session = (Session) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							session.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							session.onWritable();
+						}
+					} catch (IOException e) {
+						session.close();
+					} catch (CancelledKeyException e) {
+						session.close();
+					}
+				}
+			}
+
+			// server is shutting down, drop every connection on this loop
+			for (SelectionKey key : selector.keys()) {
+				((Session) key.attachment()).close();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				System.out.println("Could not close selector.");
+			}
+		}
+	}
+
+	/**
+	 * Protocol states, in the order a transfer goes through them.
+	 */
+	private enum State {
+		WAIT_P, WAIT_G, WAIT_A, WAIT_NAME, WAIT_SIZE, WAIT_FILE, WAIT_CHUNK, WAIT_COUNT, WAIT_RANGE, WAIT_MAC, DONE
+	}
+
+	/**
+	 * One client connection. The framing fields belong to the event loop
+	 * thread. The protocol fields are only touched while holding the session's
+	 * lock, by the worker task handling the current frame (there is never more
+	 * than one) or by the cleanup close() hands to a worker. The event loop
+	 * never takes the lock.
+	 */
+	private class Session {
+		final SocketChannel channel;
+		final EventLoop loop;
+		final int id;
+		SelectionKey selectionKey;
+
+		// framing, event loop thread only
+		private final FrameReader reader;
+		private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+		private boolean closeAfterFlush;
+		private boolean closed;
+
+		// protocol, guarded by the session's lock
+		private volatile State state = State.WAIT_P;
+		private BigInteger p; // prime of a group the client sends
+		private KeyExchange exchange;
+		private SecretKeySpec key; // AES encryption key
+		private SecureChannel secure; // cipher suite in use on the connection
+		private boolean negotiated; // the client has proposed its suites
+		private String outfilename;
+		private boolean batch; // many files over this session
+		private long remaining;
+		private Path target;
+		private Path temp;
+		private FileChannel outfile;
+		private Mac mac;
+		private CtrEngine ctr; // set for a counter-mode upload
+		private long position; // bytes of a counter-mode upload received so far
+		private RangeReceiver ranges; // set for a parallel or resumable upload
+		private ResumableTransfer.Receiver resumable; // set for a resumable upload
+		private boolean fileOK;
+
+		Session(SocketChannel channel, EventLoop loop, int id) {
+			this.channel = channel;
+			this.loop = loop;
+			this.id = id;
+			this.reader = new FrameReader(channel);
+		}
+
+		/**
+		 * Largest frame the current state accepts.
+		 */
+		private int maxFrame() {
+			switch (state) {
+			case WAIT_FILE:
+				return (int) Math.min(MAX_LEGACY_FRAME, remaining + CryptoUtilities.MESSAGE_OVERHEAD);
+			case WAIT_CHUNK:
+			case WAIT_RANGE:
+				return CryptoUtilities.STREAM_FRAME_LEN;
+			default:
+				return MAX_CONTROL_FRAME;
+			}
+		}
+
+		/**
+		 * Reads until one frame is complete, then stops reading and hands the
+		 * frame to a worker.
+		 */
+		void onReadable() throws IOException {
+			ByteBuffer buf;
+			try {
+				buf = reader.read(maxFrame());
+			} catch (EOFException e) {
+				throw new ClosedChannelException();
+			} catch (IOException e) {
+				System.out.println("Client " + id + ": " + e.getMessage() + ", closing.");
+				throw e;
+			}
+			if (buf == null) {
+				return;
+			}
+
+			// the frame's buffer is only reused once the worker releases it
+			final byte[] frame = buf.array();
+			final int length = buf.limit();
+			selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+			workers.execute(new Runnable() {
+				public void run() {
+					try {
+						synchronized (Session.this) {
+							if (state == State.DONE) {
+								return;
+							}
+							handle(frame, length);
+						}
+					} catch (Exception e) {
+						System.out.println("Error handling client " + id + ": " + e.getMessage());
+						abort();
+						return;
+					} finally {
+						reader.release();
+					}
+					resumeReading();
+				}
+			});
+		}
+
+		/**
+		 * Writes queued frames, closes the connection once they are out if
+		 * the session is over.
+		 */
+		void onWritable() throws IOException {
+			while (!outbound.isEmpty()) {
+				ByteBuffer buf = outbound.peek();
+				channel.write(buf);
+				if (buf.hasRemaining()) {
+					return;
+				}
+				outbound.poll();
+			}
+			selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+			if (closeAfterFlush) {
+				close();
+			}
+		}
+
+		/**
+		 * Queues a length-prefixed frame for sending. Safe to call from a
+		 * worker.
+		 */
+		void send(byte[] message) {
+			final ByteBuffer buf = ByteBuffer.allocate(4 + message.length);
+			buf.putInt(message.length).put(message).flip();
+			loop.execute(new Runnable() {
+				public void run() {
+					if (closed) {
+						return;
+					}
+					outbound.add(buf);
+					selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+				}
+			});
+		}
+
+		/**
+		 * Closes the connection once everything queued has been sent.
+		 */
+		void finish() {
+			loop.execute(new Runnable() {
+				public void run() {
+					closeAfterFlush = true;
+					if (!closed && outbound.isEmpty()) {
+						close();
+					}
+				}
+			});
+		}
+
+		private void resumeReading() {
+			if (state == State.DONE) {
+				return;
+			}
+			loop.execute(new Runnable() {
+				public void run() {
+					if (!closed && selectionKey.isValid()) {
+						selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Drops the connection after a protocol or IO error.
+		 */
+		private void abort() {
+			synchronized (this) {
+				state = State.DONE;
+				discardTemp();
+			}
+			loop.execute(new Runnable() {
+				public void run() {
+					close();
+				}
+			});
+		}
+
+		/**
+		 * Closes the socket. Event loop thread only.
+		 */
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (selectionKey != null) {
+				selectionKey.cancel();
+				active.decrementAndGet();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.out.println("Could not close socket.");
+			}
+			reader.close();
+			// connection dropped mid-transfer: a worker may be busy in handle()
+			// with the lock held, so the cleanup waits for it on a worker
+			state = State.DONE;
+			Runnable cleanup = new Runnable() {
+				public void run() {
+					synchronized (Session.this) {
+						discardTemp();
+					}
+				}
+			};
+			try {
+				workers.execute(cleanup);
+			} catch (RejectedExecutionException e) {
+				// server shutting down, the workers are gone
+				cleanup.run();
+			}
+			System.out.println("Killing Client " + id + ".");
+		}
+
+		/**
+		 * Advances the protocol by one frame. Caller holds the session's lock.
+		 */
+		private void handle(byte[] frame, int length) throws IOException, GeneralSecurityException {
+			switch (state) {
+			case WAIT_P:
+				byte[] first = Arrays.copyOf(frame, length);
+				if (CryptoUtilities.startsWith(first, SessionTicket.RESUME_HEADER)) {
+					if (resumeSession(first)) {
+						state = State.WAIT_NAME;
+					}
+					break;
+				}
+				String groupName = NamedGroups.requested(first);
+				if (groupName != null) {
+					exchange = NamedGroups.keyExchange(groupName, true);
+					if (exchange == null) {
+						// the client follows up with a group of its own
+						debug("Client " + id + " asked for unknown group " + groupName);
+						send(NamedGroups.UNKNOWN.getBytes());
+						break;
+					}
+					debug("Client " + id + " using group " + groupName);
+					send(exchange.publicValue());
+					state = State.WAIT_A;
+					break;
+				}
+				p = new BigInteger(first);
+				state = State.WAIT_G;
+				break;
+
+			case WAIT_G:
+				BigInteger g = new BigInteger(Arrays.copyOf(frame, length));
+				DHGroup group = new DHGroup(p, p.shiftRight(1), g);
+				if (!group.isPlausible()) {
+					throw new IOException("Invalid group");
+				}
+				exchange = new DHKeyExchange(group, false);
+				send(exchange.publicValue());
+				state = State.WAIT_A;
+				break;
+
+			case WAIT_A:
+				byte[] sharedKey = exchange.agree(Arrays.copyOf(frame, length));
+				if (sharedKey == null) {
+					throw new IOException("Invalid public key");
+				}
+				key = CryptoUtilities.key_from_seed(sharedKey);
+				debug("Client " + id + " using key = " + CryptoUtilities.toHexString(key.getEncoded()));
+				secure = SecureChannel.legacy(key);
+				state = State.WAIT_NAME;
+				break;
+
+			case WAIT_NAME:
+				byte[] name = decrypt(frame, length);
+				if (!negotiated && outfilename == null && SecureChannel.isNegotiation(name)) {
+					negotiate(name);
+					break;
+				}
+				outfilename = new String(name);
+				if (outfilename.equals(CryptoUtilities.BATCH_HEADER)) {
+					debug("Client " + id + " starting batch");
+					batch = true;
+					break;
+				}
+				if (batch && outfilename.equals(CryptoUtilities.BATCH_END)) {
+					System.out.println("Batch complete for client " + id + ".");
+					state = State.DONE;
+					finish();
+					break;
+				}
+				System.out.println("Output file: " + outfilename);
+				if (batch) {
+					Files.createDirectories(Paths.get(outfilename).toAbsolutePath().getParent());
+				}
+				state = State.WAIT_SIZE;
+				break;
+
+			case WAIT_SIZE:
+				String sizeMsg = new String(decrypt(frame, length));
+				if (sizeMsg.startsWith(CryptoUtilities.STREAM_HEADER)) {
+					remaining = Long.parseLong(sizeMsg.substring(CryptoUtilities.STREAM_HEADER.length()));
+					System.out.println("File size = " + remaining + " (streamed)");
+					target = Paths.get(outfilename).toAbsolutePath();
+					temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".part");
+					outfile = FileChannel.open(temp, StandardOpenOption.WRITE);
+					if (secure.isAead()) {
+						mac = null;
+					} else {
+						mac = Mac.getInstance("HmacSHA1");
+						mac.init(key);
+					}
+					fileOK = true;
+					state = remaining > 0 ? State.WAIT_CHUNK : State.WAIT_MAC;
+				} else if (sizeMsg.startsWith(CtrEngine.HEADER)) {
+					String[] fields = sizeMsg.substring(CtrEngine.HEADER.length()).split(" ");
+					remaining = Long.parseLong(fields[0]);
+					System.out.println("File size = " + remaining + " (counter mode)");
+					target = Paths.get(outfilename).toAbsolutePath();
+					temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".part");
+					outfile = FileChannel.open(temp, StandardOpenOption.WRITE);
+					// segments of one session are decrypted in turn, sessions in parallel
+					ctr = new CtrEngine(key, Long.parseLong(fields[1]), remaining, null);
+					position = 0;
+					fileOK = true;
+					state = remaining > 0 ? State.WAIT_CHUNK : State.WAIT_MAC;
+				} else if (sizeMsg.startsWith(ParallelTransfer.HEADER)) {
+					long size = Long.parseLong(sizeMsg.substring(ParallelTransfer.HEADER.length()));
+					System.out.println("File size = " + size + " (parallel)");
+					target = Paths.get(outfilename).toAbsolutePath();
+					temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".part");
+					outfile = FileChannel.open(temp, StandardOpenOption.WRITE);
+					ParallelTransfer.Receiver parallel = new ParallelTransfer.Receiver(secure, size, outfile);
+					ranges = parallel;
+					remaining = parallel.getRanges();
+					fileOK = true;
+					state = remaining > 0 ? State.WAIT_RANGE : State.WAIT_MAC;
+				} else if (sizeMsg.startsWith(ResumableTransfer.HEADER)) {
+					long size = Long.parseLong(sizeMsg.substring(ResumableTransfer.HEADER.length()));
+					System.out.println("File size = " + size + " (resumable)");
+					target = Paths.get(outfilename).toAbsolutePath();
+					resumable = new ResumableTransfer.Receiver(secure, target, size);
+					ranges = resumable;
+					debug("Client " + id + " already holding " + resumable.getHeld() + " chunks");
+					send(secure.seal(resumable.manifest()));
+					state = State.WAIT_COUNT;
+				} else {
+					remaining = Integer.parseInt(sizeMsg);
+					System.out.println("File size = " + remaining);
+					state = State.WAIT_FILE;
+				}
+				break;
+
+			case WAIT_FILE:
+				receiveWholeFile(decrypt(frame, length));
+				break;
+
+			case WAIT_CHUNK:
+				receiveChunk(frame, length);
+				break;
+
+			case WAIT_COUNT:
+				remaining = resumable.parseCount(secure.open(frame, length));
+				state = remaining > 0 ? State.WAIT_RANGE : State.WAIT_MAC;
+				break;
+
+			case WAIT_RANGE:
+				// ranges of one session are handled in turn, sessions in parallel
+				ranges.range(frame, length);
+				if (--remaining == 0) {
+					state = State.WAIT_MAC;
+				}
+				break;
+
+			case WAIT_MAC:
+				finishStream(decrypt(frame, length));
+				break;
+
+			default:
+				throw new IOException("Unexpected frame");
+			}
+		}
+
+		private byte[] decrypt(byte[] frame, int length) throws IOException {
+			byte[] plain = secure.open(frame, length);
+			if (plain == null) {
+				throw new IOException("Could not decrypt message");
+			}
+			return plain;
+		}
+
+		/**
+		 * Resumes the session from the client's ticket. A ticket that is not
+		 * accepted is answered with FULL and the next frame is the prime.
+		 *
+		 * @return true if the session key is set
+		 */
+		private boolean resumeSession(byte[] offer) {
+			TicketCache cache = tickets;
+			byte[] ticket = SessionTicket.offeredTicket(offer);
+			byte[] secret = cache != null && ticket != null ? cache.redeem(ticket) : null;
+			if (secret == null) {
+				debug("Client " + id + " session ticket refused");
+				send(SessionTicket.FULL.getBytes());
+				return false;
+			}
+			byte[] serverNonce = SessionTicket.newNonce();
+			send(SessionTicket.resumedMessage(serverNonce));
+			key = SessionTicket.resumedKey(secret, SessionTicket.offeredNonce(offer), serverNonce);
+			debug("Client " + id + " resumed, using key = " + CryptoUtilities.toHexString(key.getEncoded()));
+			secure = SecureChannel.legacy(key);
+			return true;
+		}
+
+		/**
+		 * Picks the cipher suite from the client's proposal, tells the client
+		 * and switches to it, followed by a session ticket if the client asked
+		 * for one. The next frame is the first file name.
+		 */
+		private void negotiate(byte[] proposal) throws IOException, GeneralSecurityException {
+			String suite = secure.choose(proposal);
+			if (suite == null) {
+				throw new IOException("Cipher suite proposal failed its integrity check");
+			}
+			debug("Client " + id + " using cipher suite " + suite);
+			TicketCache cache = tickets;
+			boolean ticket = cache != null && SecureChannel.listsTicket(proposal);
+			send(secure.seal(secure.choiceMessage(suite, ticket)));
+			secure = SecureChannel.create(key, suite, false);
+			if (ticket) {
+				send(secure.seal(cache.issue(key)));
+			}
+			negotiated = true;
+		}
+
+		/**
+		 * Single-message file: check the MAC, write the file, acknowledge.
+		 * With an AEAD suite the message was authenticated as it decrypted.
+		 */
+		private void receiveWholeFile(byte[] hashed_plaintext) throws IOException {
+			fileOK = secure.isAead() || CryptoUtilities.verify_hash(hashed_plaintext, key);
+			if (fileOK) {
+				// write the plaintext, leaving the MAC behind
+				int length = secure.isAead() ? hashed_plaintext.length
+						: hashed_plaintext.length - CryptoUtilities.HMAC_SHA1_LEN;
+				OutputStream file = Files.newOutputStream(Paths.get(outfilename));
+				try {
+					file.write(hashed_plaintext, 0, length);
+				} finally {
+					file.close();
+				}
+			}
+			acknowledge();
+		}
+
+		/**
+		 * One streamed chunk: decrypt into a pooled buffer and append to the
+		 * temporary file. A counter-mode segment is decrypted in place. After
+		 * a bad chunk the rest are only counted.
+		 */
+		private void receiveChunk(byte[] frame, int length) throws IOException {
+			int expected = (int) Math.min(CryptoUtilities.STREAM_CHUNK_LEN, remaining);
+			if (fileOK && ctr != null) {
+				if (!ctr.openSegment(frame, length, position)) {
+					fileOK = false;
+				} else {
+					ByteBuffer buf = ByteBuffer.wrap(frame, 0, length);
+					while (buf.hasRemaining()) {
+						outfile.write(buf);
+					}
+				}
+			} else if (fileOK) {
+				byte[] chunk = framePool.get();
+				try {
+					int n = secure.open(frame, length, chunk, true);
+					if (n != expected) {
+						fileOK = false;
+					} else {
+						if (mac != null) {
+							mac.update(chunk, 0, n);
+						}
+						ByteBuffer buf = ByteBuffer.wrap(chunk, 0, n);
+						while (buf.hasRemaining()) {
+							outfile.write(buf);
+						}
+					}
+				} finally {
+					framePool.release(chunk);
+				}
+			}
+			remaining -= expected;
+			position += expected;
+			if (remaining == 0) {
+				state = State.WAIT_MAC;
+			}
+		}
+
+		/**
+		 * Last frame of a streamed file: compare digests, move the file into
+		 * place or discard it, acknowledge.
+		 */
+		private void finishStream(byte[] digest) throws IOException {
+			if (resumable != null) {
+				fileOK = resumable.verify(digest);
+				if (fileOK) {
+					resumable.commit(target);
+				} else {
+					resumable.discard();
+				}
+				resumable = null;
+				ranges = null;
+				acknowledge();
+				return;
+			}
+			if (ranges != null) {
+				fileOK = ranges.verify(digest);
+				ranges = null;
+			} else if (ctr != null) {
+				fileOK = fileOK && MessageDigest.isEqual(ctr.root(), digest);
+				ctr = null;
+			} else if (mac == null) {
+				// every chunk carried its own tag, the last frame is empty
+				fileOK = fileOK && digest.length == 0;
+			} else {
+				fileOK = fileOK && MessageDigest.isEqual(mac.doFinal(), digest);
+			}
+			outfile.force(false);
+			outfile.close();
+			outfile = null;
+			if (fileOK) {
+				try {
+					Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			discardTemp();
+			acknowledge();
+		}
+
+		private void acknowledge() {
+			if (fileOK) {
+				debug("Sending \"passed\" acknowledgement to client " + id + ".");
+				System.out.println("File written successfully.");
+			} else {
+				System.out.println("Integrity check failed.  File not written.");
+				debug("Sending \"Failed\" acknowledgement to client " + id + ".");
+			}
+			send(secure.seal((fileOK ? "Passed" : "Failed").getBytes()));
+			if (batch) {
+				state = State.WAIT_NAME;
+			} else {
+				state = State.DONE;
+				finish();
+			}
+		}
+
+		/**
+		 * Closes and deletes the temporary file, if any. A resumable upload's
+		 * partial file is only closed. Caller holds the session's lock.
+		 */
+		private void discardTemp() {
+			if (resumable != null) {
+				// keep what has arrived for the next attempt
+				resumable.close();
+				resumable = null;
+				ranges = null;
+			}
+			ctr = null;
+			try {
+				if (outfile != null) {
+					outfile.close();
+					outfile = null;
+				}
+				if (temp != null) {
+					Files.deleteIfExists(temp);
+					temp = null;
+				}
+			} catch (IOException e) {
+				System.out.println("Error removing temporary file.");
+			}
+		}
+	}
+}
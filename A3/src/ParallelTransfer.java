@@ -0,0 +1,335 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Parallel upload of one large file. The file is split into CHUNK_LEN ranges
+ * that several lanes read, MAC and encrypt at once, and that are sent in
+ * whatever order they finish. Each frame starts with its range's offset, so
+ * the receiver can decrypt frames on several threads too and write each one
+ * into place with a positional write.
+ *
+ * Integrity is checked with a two-level hash tree. Every range has a leaf
+ * HMAC-SHA1 over its offset and data, and the last frame holds the root, an
+ * HMAC-SHA1 over all leaves in file order. The receiver recomputes the root
+ * from the ranges it wrote, so a dropped, repeated or reordered range fails
+ * the check just like a modified one. The frames themselves are encrypted by
+ * the connection's SecureChannel, so with an AEAD suite each range is also
+ * authenticated on its own as it is decrypted.
+ */
+public class ParallelTransfer {
+	public static final int CHUNK_LEN = CryptoUtilities.STREAM_CHUNK_LEN;
+
+	// prefix of the file size message announcing a parallel upload
+	public static final String HEADER = "PARALLEL ";
+
+	public static final int DEFAULT_LANES = Runtime.getRuntime().availableProcessors();
+
+	// each frame's plaintext starts with the range's offset
+	private static final int OFFSET_LEN = 8;
+
+	// encrypted ranges waiting for the socket, per lane
+	private static final int QUEUED_PER_LANE = 2;
+
+	// frames a receiver decrypts at once
+	private static final int RECEIVE_WINDOW = 2 * Runtime.getRuntime().availableProcessors();
+
+	// how often the sender checks the lanes for errors while waiting
+	private static final long POLL_MILLIS = 100;
+
+	// room for a padded range plus the cipher parameters, as a frame or as plaintext
+	private static final BufferPool framePool = new BufferPool(CryptoUtilities.STREAM_FRAME_LEN);
+
+	// decrypts received ranges, shared by all connections
+	private static final ExecutorService receivers = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ParallelTransfer-" + count.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * @param size
+	 *            file size in bytes
+	 * @return number of ranges the file is sent in
+	 * @throws IOException
+	 *             if the file has too many ranges
+	 */
+	public static int rangeCount(long size) throws IOException {
+		long count = (size + CHUNK_LEN - 1) / CHUNK_LEN;
+		if (size < 0 || count > Integer.MAX_VALUE) {
+			throw new IOException("Bad file size " + size);
+		}
+		return (int) count;
+	}
+
+	/**
+	 * Sends a file as encrypted ranges, then the root of the hash tree.
+	 *
+	 * @param file
+	 *            the source file, only read with positional reads
+	 * @param size
+	 *            number of bytes to send
+	 * @param channel
+	 *            the connection's cipher suite and keys
+	 * @param out
+	 *            the output stream
+	 * @param lanes
+	 *            number of threads reading and encrypting ranges
+	 * @throws IOException
+	 *             if the file cannot be read or the stream fails
+	 */
+	public static void send(final FileChannel file, final long size, final SecureChannel channel,
+			DataOutputStream out, int lanes) throws IOException {
+		final int ranges = rangeCount(size);
+		final byte[][] leaves = new byte[ranges][];
+		final ArrayBlockingQueue<byte[]> ready = new ArrayBlockingQueue<byte[]>(QUEUED_PER_LANE * lanes);
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+		ExecutorService pool = Executors.newFixedThreadPool(lanes);
+		try {
+			for (int l = 0; l < lanes; l++) {
+				pool.execute(new Runnable() {
+					public void run() {
+						byte[] plain = framePool.get();
+						try {
+							int i;
+							while (failure.get() == null && (i = next.getAndIncrement()) < ranges) {
+								long offset = (long) i * CHUNK_LEN;
+								int len = (int) Math.min(CHUNK_LEN, size - offset);
+								ByteBuffer.wrap(plain).putLong(offset);
+								ByteBuffer buf = ByteBuffer.wrap(plain, OFFSET_LEN, len);
+								while (buf.hasRemaining()) {
+									if (file.read(buf, offset + buf.position() - OFFSET_LEN) < 0) {
+										throw new EOFException("File ended before " + size + " bytes");
+									}
+								}
+								leaves[i] = leaf(channel.getKey(), plain, OFFSET_LEN + len);
+								byte[] frame = channel.seal(plain, 0, OFFSET_LEN + len);
+								if (frame == null) {
+									throw new IOException("Could not encrypt range " + i);
+								}
+								ready.put(frame);
+							}
+						} catch (Exception e) {
+							failure.compareAndSet(null, e);
+						} finally {
+							framePool.release(plain);
+						}
+					}
+				});
+			}
+
+			// one writer keeps the frames whole on the stream
+			for (int sent = 0; sent < ranges;) {
+				byte[] frame = ready.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (frame != null) {
+					CryptoUtilities.send(frame, out);
+					sent++;
+				} else if (failure.get() != null) {
+					Exception e = failure.get();
+					throw e instanceof IOException ? (IOException) e : new IOException(e);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} finally {
+			failure.compareAndSet(null, new IOException("Upload stopped"));
+			ready.clear();
+			pool.shutdownNow();
+		}
+
+		// every frame has been taken from the queue, so every leaf is set
+		channel.send(root(channel.getKey(), leaves), out);
+	}
+
+	/**
+	 * Receives a file sent by send(), decrypting and writing ranges on the
+	 * shared receiver threads. All frames are read even after one fails, so
+	 * the stream stays in step for the acknowledgement.
+	 *
+	 * @param channel
+	 *            the connection's cipher suite and keys
+	 * @param in
+	 *            the input stream
+	 * @param size
+	 *            number of bytes announced by the sender
+	 * @param file
+	 *            the destination, written with positional writes
+	 * @return true if every range arrived once and the root matches
+	 * @throws IOException
+	 *             if the stream fails
+	 */
+	public static boolean receive(SecureChannel channel, DataInputStream in, long size, FileChannel file)
+			throws IOException {
+		final Receiver receiver = new Receiver(channel, size, file);
+		final Semaphore window = new Semaphore(RECEIVE_WINDOW);
+		try {
+			for (int i = 0; i < receiver.ranges; i++) {
+				final byte[] frame = framePool.get();
+				final int len;
+				try {
+					len = CryptoUtilities.receive(in, frame);
+				} catch (IOException e) {
+					framePool.release(frame);
+					throw e;
+				}
+				window.acquire();
+				receivers.execute(new Runnable() {
+					public void run() {
+						try {
+							receiver.range(frame, len);
+						} finally {
+							framePool.release(frame);
+							window.release();
+						}
+					}
+				});
+			}
+			// wait for the ranges still being written
+			window.acquire(RECEIVE_WINDOW);
+			window.release(RECEIVE_WINDOW);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+
+		byte[] root = channel.receive(in);
+		return receiver.verify(root);
+	}
+
+	/**
+	 * Checks and writes the ranges of one upload as they arrive, in any
+	 * order and from any thread.
+	 */
+	public static class Receiver implements RangeReceiver {
+		private final SecureChannel channel;
+		private final long size;
+		private final FileChannel file;
+		final int ranges;
+		private final byte[][] leaves;
+		private final BitSet written;
+		private volatile boolean ok = true;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param channel
+		 *            the connection's cipher suite and keys
+		 * @param size
+		 *            number of bytes announced by the sender
+		 * @param file
+		 *            the destination
+		 * @throws IOException
+		 *             if the size is out of range
+		 */
+		public Receiver(SecureChannel channel, long size, FileChannel file) throws IOException {
+			this.channel = channel;
+			this.size = size;
+			this.file = file;
+			this.ranges = rangeCount(size);
+			this.leaves = new byte[ranges][];
+			this.written = new BitSet(ranges);
+		}
+
+		/**
+		 * @return number of frames before the root
+		 */
+		public int getRanges() {
+			return ranges;
+		}
+
+		public void range(byte[] frame, int length) {
+			if (!ok) {
+				return;
+			}
+			byte[] plain = framePool.get();
+			try {
+				int n = channel.open(frame, length, plain, false);
+				long offset = n >= OFFSET_LEN ? ByteBuffer.wrap(plain).getLong() : -1;
+				if (offset < 0 || offset >= size || offset % CHUNK_LEN != 0
+						|| n - OFFSET_LEN != Math.min(CHUNK_LEN, size - offset)) {
+					ok = false;
+					return;
+				}
+				int i = (int) (offset / CHUNK_LEN);
+				synchronized (written) {
+					if (written.get(i)) {
+						ok = false;
+						return;
+					}
+					written.set(i);
+				}
+				leaves[i] = leaf(channel.getKey(), plain, n);
+				ByteBuffer buf = ByteBuffer.wrap(plain, OFFSET_LEN, n - OFFSET_LEN);
+				while (buf.hasRemaining()) {
+					file.write(buf, offset + buf.position() - OFFSET_LEN);
+				}
+			} catch (IOException e) {
+				ok = false;
+			} catch (GeneralSecurityException e) {
+				ok = false;
+			} finally {
+				framePool.release(plain);
+			}
+		}
+
+		public boolean verify(byte[] root) {
+			synchronized (written) {
+				if (!ok || root == null || written.cardinality() != ranges) {
+					return false;
+				}
+			}
+			try {
+				return MessageDigest.isEqual(root(channel.getKey(), leaves), root);
+			} catch (IOException e) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * HMAC-SHA1 of one range's plaintext, offset included.
+	 */
+	private static byte[] leaf(SecretKeySpec keySpec, byte[] plain, int length) throws GeneralSecurityException {
+		Mac mac = CryptoContext.get(keySpec).mac();
+		mac.update(plain, 0, length);
+		return mac.doFinal();
+	}
+
+	/**
+	 * HMAC-SHA1 over all leaves in file order.
+	 */
+	private static byte[] root(SecretKeySpec keySpec, byte[][] leaves) throws IOException {
+		try {
+			Mac mac = CryptoContext.get(keySpec).mac();
+			for (int i = 0; i < leaves.length; i++) {
+				mac.update(leaves[i]);
+			}
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+}
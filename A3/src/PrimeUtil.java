@@ -1,5 +1,15 @@
 import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PrimeUtil {
 	
@@ -7,55 +17,341 @@ public class PrimeUtil {
 	private static BigInteger one = BigInteger.ONE;
 	private static int numBits;
 	private static boolean debug;
+	private static int maxThreads = Runtime.getRuntime().availableProcessors();
+
+	// Miller-Rabin certainty for sieve survivors
+	private static final int PRIME_CERTAINTY = 50;
+	// number of odd offsets scanned from each random base
+	private static final int SIEVE_WINDOW = 1 << 14;
+	// below this size the candidates are too close to the sieve primes
+	private static final int SIEVE_MIN_BITS = 64;
+	// the odd primes below 2^15, a little over 3500 of them
+	private static final int[] SMALL_PRIMES = oddPrimesBelow(1 << 15);
 	
 	public PrimeUtil(int num, boolean debug){
 		this.numBits = num;
 		this.debug = debug;
 	}
 	
+	/**
+	 * Caps the number of cores the safe prime search may use.
+	 *
+	 * @param threads
+	 *            maximum number of search workers, at least 1
+	 */
+	public static void setMaxThreads(int threads){
+		if(threads < 1){
+			throw new IllegalArgumentException("Thread count must be at least 1");
+		}
+		maxThreads = threads;
+	}
+
+	public static int getMaxThreads(){
+		return maxThreads;
+	}
+
 	public static BigInteger sopieGermainPrime(){
-		
-		Random rand = new Random(System.currentTimeMillis());
-		BigInteger sg = BigInteger.probablePrime(numBits,rand);		
-		BigInteger sqTimes2 = sg.multiply(two);
-		BigInteger sqTimes2Add1 = sqTimes2.add(one);
-		
-		
-		while(sqTimes2Add1.isProbablePrime(3) == false){
-			sg = BigInteger.probablePrime(numBits,rand);
-			two = BigInteger.ONE.add(one);
-			sqTimes2 = sg.multiply(two);
-			sqTimes2Add1 = sqTimes2.add(one);			
-		}
-		return sg;
+		return safePrimePair()[0];
 	}
-	
+
+	/**
+	 * Searches for a Sophie Germain prime q and its safe prime p = 2q+1 using
+	 * up to getMaxThreads() workers on a private ForkJoinPool.
+	 *
+	 * @return the pair {q, p}
+	 */
+	public static BigInteger[] safePrimePair(){
+		return safePrimePair(numBits);
+	}
+
+	/**
+	 * As safePrimePair(), for a q of the given size rather than the one set
+	 * through the constructor.
+	 *
+	 * @param bits
+	 *            bit length of q
+	 * @return the pair {q, p}
+	 */
+	public static BigInteger[] safePrimePair(int bits){
+		ForkJoinPool pool = new ForkJoinPool(maxThreads);
+		try {
+			return safePrimePair(bits, pool, maxThreads);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Runs the safe prime search on the given executor. Every worker tests its
+	 * own independent candidate stream, the first confirmed (q, 2q+1) pair is
+	 * returned and the remaining workers are cancelled.
+	 *
+	 * @param bits
+	 *            bit length of q
+	 * @param exec
+	 *            executor to run the workers on
+	 * @param workers
+	 *            number of independent candidate streams to search
+	 * @return the pair {q, p}
+	 */
+	public static BigInteger[] safePrimePair(final int bits, ExecutorService exec, int workers){
+		final AtomicBoolean found = new AtomicBoolean(false);
+		List<Callable<BigInteger[]>> tasks = new ArrayList<Callable<BigInteger[]>>();
+		for(int i = 0; i < Math.max(1, workers); i++){
+			tasks.add(new Callable<BigInteger[]>() {
+				public BigInteger[] call() throws InterruptedException {
+					return searchPair(bits, new SecureRandom(), found);
+				}
+			});
+		}
+		try {
+			BigInteger[] pair = exec.invokeAny(tasks);
+			if(debug){
+				System.out.println("Debug PrimeUtil Sophie Germain prime q is: " + pair[0]);
+			}
+			return pair;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Safe prime search interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Safe prime search failed", e.getCause());
+		} finally {
+			found.set(true);
+		}
+	}
+
+	/**
+	 * Single-stream search loop, gives up as soon as the worker is cancelled
+	 * or another stream has already found a pair. Candidates are drawn from
+	 * sieved windows so only pairs with no small factor reach a primality
+	 * test.
+	 */
+	private static BigInteger[] searchPair(int bits, Random rand, AtomicBoolean found) throws InterruptedException {
+		if(bits < SIEVE_MIN_BITS){
+			return searchPairUnsieved(bits, rand, found);
+		}
+		BitSet composite = new BitSet(SIEVE_WINDOW);
+		while(true){
+			BigInteger base = randomOddBase(bits, rand);
+			sieveWindow(base, composite);
+			for(int k = composite.nextClearBit(0); k < SIEVE_WINDOW; k = composite.nextClearBit(k + 1)){
+				if(found.get() || Thread.currentThread().isInterrupted()){
+					throw new InterruptedException();
+				}
+				BigInteger sg = base.add(BigInteger.valueOf(2L * k));
+				if(sg.bitLength() != bits){
+					break;
+				}
+				BigInteger sgTimes2Add1 = sg.multiply(two).add(one);
+				// one cheap Fermat round on each side before the full tests
+				if(!two.modPow(sg.subtract(one), sg).equals(one)){
+					continue;
+				}
+				if(!two.modPow(sgTimes2Add1.subtract(one), sgTimes2Add1).equals(one)){
+					continue;
+				}
+				if(sg.isProbablePrime(PRIME_CERTAINTY) && sgTimes2Add1.isProbablePrime(PRIME_CERTAINTY)){
+					found.set(true);
+					return new BigInteger[] { sg, sgTimes2Add1 };
+				}
+			}
+		}
+	}
+
+	/**
+	 * Original draw-and-test loop, used for sizes too small to sieve.
+	 */
+	private static BigInteger[] searchPairUnsieved(int bits, Random rand, AtomicBoolean found) throws InterruptedException {
+		while(true){
+			if(found.get() || Thread.currentThread().isInterrupted()){
+				throw new InterruptedException();
+			}
+			BigInteger sg = BigInteger.probablePrime(bits,rand);
+			BigInteger sgTimes2Add1 = sg.multiply(two).add(one);
+			if(sgTimes2Add1.isProbablePrime(3)){
+				found.set(true);
+				return new BigInteger[] { sg, sgTimes2Add1 };
+			}
+		}
+	}
+
+	/**
+	 * Random odd number of exactly the given bit length.
+	 */
+	private static BigInteger randomOddBase(int bits, Random rand){
+		return new BigInteger(bits, rand).setBit(bits - 1).setBit(0);
+	}
+
+	/**
+	 * Marks every offset k in the window for which q = base + 2k or 2q+1 is
+	 * divisible by one of SMALL_PRIMES.
+	 *
+	 * @param base
+	 *            odd start of the window
+	 * @param composite
+	 *            receives the crossed off offsets, cleared first
+	 */
+	static void sieveWindow(BigInteger base, BitSet composite){
+		composite.clear();
+		for(int i = 0; i < SMALL_PRIMES.length; i++){
+			int sp = SMALL_PRIMES[i];
+			int r = base.mod(BigInteger.valueOf(sp)).intValue();
+			int inv2 = (sp + 1) / 2;
+			// q = r + 2k = 0 (mod sp)  =>  k = -r / 2
+			int kq = (int) ((long) (sp - r) % sp * inv2 % sp);
+			// 2q+1 = 2r + 4k + 1 = 0 (mod sp)  =>  k = -(2r+1) / 4
+			int kp = (int) ((long) ((sp - (2 * r + 1) % sp) % sp) * inv2 % sp * inv2 % sp);
+			for(int k = kq; k < SIEVE_WINDOW; k += sp){
+				composite.set(k);
+			}
+			for(int k = kp; k < SIEVE_WINDOW; k += sp){
+				composite.set(k);
+			}
+		}
+	}
+
+	/**
+	 * Odd primes below the given bound, by the sieve of Eratosthenes.
+	 */
+	private static int[] oddPrimesBelow(int bound){
+		BitSet sieve = new BitSet(bound);
+		int[] primes = new int[bound / 2];
+		int count = 0;
+		for(int i = 3; i < bound; i += 2){
+			if(!sieve.get(i)){
+				primes[count++] = i;
+				for(long j = (long) i * i; j < bound; j += 2 * i){
+					sieve.set((int) j);
+				}
+			}
+		}
+		return Arrays.copyOf(primes, count);
+	}
+
+	/**
+	 * Finds a primitive root of the safe prime p = 2q+1.
+	 *
+	 * @param sophie
+	 *            the safe prime p
+	 * @return the smallest primitive root
+	 */
 	public static BigInteger primitiveRoot(BigInteger sophie){
-		
-		BigInteger pMinus1 = sophie.subtract(one);
-		BigInteger q = pMinus1.divide(two);
-		BigInteger smallExp = pMinus1.divide(q);		
-		boolean isPrimRoot = false;
+		return primitiveRoot(sophie.shiftRight(1), sophie);
+	}
+
+	/**
+	 * Finds a primitive root of the safe prime p = 2q+1. Every g with
+	 * 1 < g < p-1 has order q or 2q, and it is 2q exactly when g is a
+	 * quadratic non-residue, so the Legendre symbol decides each candidate
+	 * without an exponentiation.
+	 *
+	 * @param q
+	 *            the Sophie Germain prime
+	 * @param p
+	 *            the safe prime 2q+1
+	 * @return the smallest primitive root
+	 */
+	public static BigInteger primitiveRoot(BigInteger q, BigInteger p){
 		BigInteger g = one;
-		while(!(isPrimRoot)){
+		do {
 			g = g.add(one);
-			BigInteger smallTest = g.modPow(smallExp, sophie);
-			isPrimRoot = smallTest.compareTo(one) != 0;
-			BigInteger bigTest = g.modPow(q, sophie);
-			isPrimRoot = isPrimRoot && (bigTest.compareTo(one) != 0);			
+		} while(!isPrimitiveRoot(g, q, p));
+		if(debug){
+			System.out.println("Debug PrimeUtil Generator g is: " + g);
 		}
+		return g;
+	}
+
+	/**
+	 * Picks a generator of the subgroup of prime order q of the safe prime
+	 * p = 2q+1, i.e. of the quadratic residues. Working in that subgroup
+	 * means no public value leaks its exponent's lowest bit. 2 is a residue
+	 * exactly when p = 7 mod 8 and 4 always is, so no exponentiation is
+	 * needed at all.
+	 *
+	 * @param q
+	 *            the Sophie Germain prime
+	 * @param p
+	 *            the safe prime 2q+1
+	 * @return the smallest generator of the order q subgroup
+	 */
+	public static BigInteger subgroupGenerator(BigInteger q, BigInteger p){
+		BigInteger g = one;
+		do {
+			g = g.add(one);
+		} while(!isSubgroupGenerator(g, q, p));
 		if(debug){
 			System.out.println("Debug PrimeUtil Generator g is: " + g);
 		}
-		
-		return g;		
+		return g;
+	}
+
+	/**
+	 * @return true if g generates the subgroup of order q of the safe prime
+	 *         p = 2q+1
+	 */
+	public static boolean isSubgroupGenerator(BigInteger g, BigInteger q, BigInteger p){
+		return inRange(g, p) && legendre(g, p) == 1;
+	}
+
+	/**
+	 * @return true if g is a primitive root of the safe prime p = 2q+1
+	 */
+	public static boolean isPrimitiveRoot(BigInteger g, BigInteger q, BigInteger p){
+		return inRange(g, p) && legendre(g, p) == -1;
+	}
+
+	/**
+	 * 1 and p-1 are the only elements of order 1 and 2.
+	 */
+	private static boolean inRange(BigInteger g, BigInteger p){
+		return g.compareTo(one) > 0 && g.compareTo(p.subtract(one)) < 0;
+	}
+
+	/**
+	 * Legendre symbol (a/p) for an odd prime p, computed as the Jacobi
+	 * symbol with quadratic reciprocity: only reductions and shifts, no
+	 * exponentiation.
+	 *
+	 * @param a
+	 *            any integer
+	 * @param p
+	 *            an odd prime
+	 * @return 1 if a is a non-zero square mod p, -1 if it is not a square, 0
+	 *         if p divides a
+	 */
+	public static int legendre(BigInteger a, BigInteger p){
+		BigInteger n = p;
+		a = a.mod(n);
+		int t = 1;
+		while(a.signum() != 0){
+			int z = a.getLowestSetBit();
+			a = a.shiftRight(z);
+			int r = n.intValue() & 7;
+			// (2/n) = -1 for n = 3, 5 mod 8
+			if((z & 1) == 1 && (r == 3 || r == 5)){
+				t = -t;
+			}
+			// reciprocity: the sign flips if both are 3 mod 4
+			if((a.intValue() & 3) == 3 && (r & 3) == 3){
+				t = -t;
+			}
+			BigInteger swap = a;
+			a = n.mod(a);
+			n = swap;
+		}
+		return n.equals(one) ? t : 0;
 	}
 	
+	/**
+	 * Draws a private exponent from the shared ExponentPool.
+	 *
+	 * @param pMinus2
+	 *            p-2 for the group's prime p
+	 * @return a SecureRandom exponent in [1, p-2], full length unless the
+	 *         pool is set to short exponents
+	 */
 	public static BigInteger getExponent(BigInteger pMinus2){
-		Random rand = new Random(System.currentTimeMillis());
-		int num = pMinus2.bitCount();
-		BigInteger exp = new BigInteger(num,rand);
-		exp = exp.mod(pMinus2.add(one));
-		return exp;
+		return ExponentPool.getShared().exponent(pMinus2);
 	}
 }
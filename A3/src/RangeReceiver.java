@@ -0,0 +1,26 @@
+/**
+ * Receiving side of an upload whose frames each carry one range of the file,
+ * as sent by ParallelTransfer and ResumableTransfer.
+ */
+public interface RangeReceiver {
+	/**
+	 * Decrypts one frame and writes its range into place. A bad frame fails
+	 * the upload but is otherwise ignored, so the stream stays in step.
+	 *
+	 * @param frame
+	 *            the encrypted frame
+	 * @param length
+	 *            length of the frame
+	 */
+	void range(byte[] frame, int length);
+
+	/**
+	 * Compares the sender's root with the one computed from the ranges
+	 * written. Call once every range() call has returned.
+	 *
+	 * @param root
+	 *            the decrypted root sent last, null if it did not decrypt
+	 * @return true if the whole file arrived intact
+	 */
+	boolean verify(byte[] root);
+}
@@ -0,0 +1,513 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Resumable upload. The server writes each chunk straight into a partial file
+ * next to the destination and records it in a small manifest: the chunk's
+ * index and the SHA-256 of its offset and data. When the connection drops
+ * both files stay behind. On the next attempt the server first sends what the
+ * manifest holds, the client compares it with its own file and sends only the
+ * chunks that are missing or differ.
+ *
+ * Chunk digests are keyless so they stay valid from one session to the next.
+ * The whole file is checked at the end with an HMAC-SHA1, under the current
+ * session's key, over the digests of all chunks in file order.
+ *
+ * Manifest file format: int MAGIC, long file size, int chunk length, then
+ * (int index, 32-byte digest) records, a later record for the same chunk
+ * replacing an earlier one.
+ */
+public class ResumableTransfer {
+	// prefix of the file size message announcing a resumable upload
+	public static final String HEADER = "RESUME ";
+
+	public static final int CHUNK_LEN = CryptoUtilities.STREAM_CHUNK_LEN;
+
+	public static final String PARTIAL_SUFFIX = ".partial";
+	public static final String MANIFEST_SUFFIX = ".manifest";
+
+	// chunks written between forcing the partial file and the manifest to disk
+	public static final int CHECKPOINT_CHUNKS = 64;
+
+	private static final int MAGIC = 0x41335253; // "A3RS"
+	private static final int MANIFEST_HEADER_LEN = 4 + 8 + 4;
+	private static final int DIGEST_LEN = 32;
+	private static final int RECORD_LEN = 4 + DIGEST_LEN;
+	private static final int OFFSET_LEN = 8;
+
+	private static final BufferPool framePool = new BufferPool(CryptoUtilities.STREAM_FRAME_LEN);
+
+	private static final ThreadLocal<MessageDigest> sha256 = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/**
+	 * Sends the chunks of a file that the server does not already hold, then
+	 * the root over all chunk digests.
+	 *
+	 * @param file
+	 *            the source file
+	 * @param size
+	 *            number of bytes to send
+	 * @param channel
+	 *            the connection's cipher suite and keys
+	 * @param in
+	 *            the input stream, for the server's manifest
+	 * @param out
+	 *            the output stream
+	 * @return number of chunks sent
+	 * @throws IOException
+	 *             if the file cannot be read or the stream fails
+	 */
+	public static int send(FileChannel file, long size, SecureChannel channel, DataInputStream in,
+			DataOutputStream out) throws IOException {
+		int chunks = ParallelTransfer.rangeCount(size);
+		byte[][] present = decodeManifest(channel.receive(in, (long) chunks * RECORD_LEN), chunks);
+
+		// digest every chunk, keeping those the server lacks or has wrong
+		byte[] plain = framePool.get();
+		try {
+			byte[][] digests = new byte[chunks][];
+			List<Integer> missing = new ArrayList<Integer>();
+			for (int i = 0; i < chunks; i++) {
+				int len = readChunk(file, size, i, plain);
+				digests[i] = digest(plain, OFFSET_LEN + len);
+				if (present[i] == null || !MessageDigest.isEqual(present[i], digests[i])) {
+					missing.add(i);
+				}
+			}
+			if (missing.size() < chunks) {
+				System.out.println("Resuming, " + (chunks - missing.size()) + " of " + chunks
+						+ " chunks are already on the server");
+			}
+
+			channel.send(String.valueOf(missing.size()).getBytes(), out);
+			for (int i : missing) {
+				int len = readChunk(file, size, i, plain);
+				CryptoUtilities.send(channel.seal(plain, 0, OFFSET_LEN + len), out);
+			}
+			channel.send(root(channel.getKey(), digests), out);
+			return missing.size();
+		} finally {
+			framePool.release(plain);
+		}
+	}
+
+	/**
+	 * Reads chunk i into plain, after its offset.
+	 *
+	 * @return the chunk's length
+	 */
+	private static int readChunk(FileChannel file, long size, int i, byte[] plain) throws IOException {
+		long offset = (long) i * CHUNK_LEN;
+		int len = (int) Math.min(CHUNK_LEN, size - offset);
+		ByteBuffer.wrap(plain).putLong(offset);
+		ByteBuffer buf = ByteBuffer.wrap(plain, OFFSET_LEN, len);
+		while (buf.hasRemaining()) {
+			if (file.read(buf, offset + buf.position() - OFFSET_LEN) < 0) {
+				throw new EOFException("File ended before " + size + " bytes");
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Server side of the exchange after the size message: sends the manifest,
+	 * then receives the chunks and the root.
+	 *
+	 * @param channel
+	 *            the connection's cipher suite and keys
+	 * @param in
+	 *            the input stream
+	 * @param out
+	 *            the output stream
+	 * @param receiver
+	 *            the open partial file
+	 * @return true if the file is complete and intact
+	 * @throws IOException
+	 *             if the stream fails
+	 */
+	public static boolean receive(SecureChannel channel, DataInputStream in, DataOutputStream out,
+			Receiver receiver) throws IOException {
+		channel.send(receiver.manifest(), out);
+		int count = receiver.parseCount(channel.receive(in));
+
+		byte[] frame = framePool.get();
+		try {
+			for (int i = 0; i < count; i++) {
+				int len = CryptoUtilities.receive(in, frame);
+				receiver.range(frame, len);
+			}
+		} finally {
+			framePool.release(frame);
+		}
+		return receiver.verify(channel.receive(in));
+	}
+
+	/**
+	 * A partial file and its manifest on the server. Not thread-safe, one
+	 * connection uses it at a time.
+	 */
+	public static class Receiver implements RangeReceiver {
+		private final SecureChannel channel;
+		private final long size;
+		private final int chunks;
+		private final Path partialPath;
+		private final Path manifestPath;
+		private final FileChannel partial;
+		private final FileChannel manifest;
+		private final byte[][] digests; // chunks held, null if missing
+		private final ByteBuffer record = ByteBuffer.allocate(RECORD_LEN);
+		private int sinceCheckpoint;
+		private boolean ok = true;
+
+		/**
+		 * Opens the partial file and manifest for a destination, picking up a
+		 * previous attempt if it was for a file of the same size.
+		 *
+		 * @param channel
+		 *            the connection's cipher suite and keys
+		 * @param target
+		 *            the destination file
+		 * @param size
+		 *            number of bytes announced by the sender
+		 * @throws IOException
+		 *             if the files cannot be opened
+		 */
+		public Receiver(SecureChannel channel, Path target, long size) throws IOException {
+			this.channel = channel;
+			this.size = size;
+			this.chunks = ParallelTransfer.rangeCount(size);
+			this.digests = new byte[chunks][];
+			this.partialPath = target.resolveSibling(target.getFileName() + PARTIAL_SUFFIX);
+			this.manifestPath = target.resolveSibling(target.getFileName() + MANIFEST_SUFFIX);
+			this.partial = FileChannel.open(partialPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			FileChannel m = null;
+			try {
+				m = FileChannel.open(manifestPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+				// one connection per partial file, the lock goes with the channel
+				boolean locked;
+				try {
+					locked = m.tryLock() != null;
+				} catch (OverlappingFileLockException e) {
+					locked = false;
+				}
+				if (!locked) {
+					throw new IOException("An upload of " + target + " is already in progress");
+				}
+				load(m);
+			} catch (IOException e) {
+				partial.close();
+				if (m != null) {
+					m.close();
+				}
+				throw e;
+			}
+			this.manifest = m;
+		}
+
+		/**
+		 * Reads the records of a previous attempt and rewrites the manifest
+		 * with only the usable ones. Records are only forced to disk in
+		 * checkpoints, so after a crash one can outlive its data; every chunk
+		 * a record names is read back and hashed again before it is trusted.
+		 */
+		private void load(FileChannel m) throws IOException {
+			// a compacted manifest plus one attempt's records at most
+			long limit = Math.min(MANIFEST_HEADER_LEN + 2L * chunks * RECORD_LEN, Integer.MAX_VALUE - 8);
+			ByteBuffer buf = ByteBuffer.allocate((int) Math.min(m.size(), limit));
+			while (buf.hasRemaining()) {
+				if (m.read(buf, buf.position()) <= 0) {
+					break;
+				}
+			}
+			buf.flip();
+			long partialSize = partial.size();
+			boolean same = buf.remaining() >= MANIFEST_HEADER_LEN && buf.getInt() == MAGIC && buf.getLong() == size
+					&& buf.getInt() == CHUNK_LEN;
+			if (same) {
+				// a truncated last record is ignored
+				byte[] digest = new byte[DIGEST_LEN];
+				while (buf.remaining() >= RECORD_LEN) {
+					int i = buf.getInt();
+					buf.get(digest);
+					long end = Math.min((long) (i + 1) * CHUNK_LEN, size);
+					if (i >= 0 && i < chunks && end <= partialSize) {
+						digests[i] = digest.clone();
+					}
+				}
+				recheck();
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(MANIFEST_HEADER_LEN);
+			header.putInt(MAGIC).putLong(size).putInt(CHUNK_LEN).flip();
+			m.truncate(0);
+			m.write(header, 0);
+			m.position(MANIFEST_HEADER_LEN);
+			for (int i = 0; i < chunks; i++) {
+				if (digests[i] != null) {
+					appendRecord(m, i);
+				}
+			}
+			if (!same) {
+				partial.truncate(0);
+			}
+			m.force(false);
+		}
+
+		/**
+		 * Drops the chunks whose bytes in the partial file do not match their
+		 * record, e.g. a hole left by a crash.
+		 */
+		private void recheck() throws IOException {
+			byte[] plain = framePool.get();
+			try {
+				for (int i = 0; i < chunks; i++) {
+					if (digests[i] == null) {
+						continue;
+					}
+					int len;
+					try {
+						len = readChunk(partial, size, i, plain);
+					} catch (EOFException e) {
+						digests[i] = null;
+						continue;
+					}
+					if (!MessageDigest.isEqual(digests[i], digest(plain, OFFSET_LEN + len))) {
+						digests[i] = null;
+					}
+				}
+			} finally {
+				framePool.release(plain);
+			}
+		}
+
+		private void appendRecord(FileChannel m, int i) throws IOException {
+			record.clear();
+			record.putInt(i).put(digests[i]).flip();
+			while (record.hasRemaining()) {
+				m.write(record);
+			}
+		}
+
+		/**
+		 * @return number of chunks already held
+		 */
+		public int getHeld() {
+			int held = 0;
+			for (int i = 0; i < chunks; i++) {
+				if (digests[i] != null) {
+					held++;
+				}
+			}
+			return held;
+		}
+
+		/**
+		 * @return the manifest message for the client: (index, digest) for
+		 *         each chunk held
+		 */
+		public byte[] manifest() {
+			ByteBuffer buf = ByteBuffer.allocate(getHeld() * RECORD_LEN);
+			for (int i = 0; i < chunks; i++) {
+				if (digests[i] != null) {
+					buf.putInt(i).put(digests[i]);
+				}
+			}
+			return buf.array();
+		}
+
+		/**
+		 * Parses the client's count of chunks to follow.
+		 *
+		 * @param message
+		 *            the decrypted count message, null if it did not decrypt
+		 * @return number of frames before the root
+		 * @throws IOException
+		 *             if the count is missing or out of range
+		 */
+		public int parseCount(byte[] message) throws IOException {
+			try {
+				int count = Integer.parseInt(new String(message));
+				if (count >= 0 && count <= chunks) {
+					return count;
+				}
+			} catch (RuntimeException e) {
+				// reported below
+			}
+			throw new IOException("Bad chunk count");
+		}
+
+		public void range(byte[] frame, int length) {
+			byte[] plain = framePool.get();
+			try {
+				int n = channel.open(frame, length, plain, true);
+				long offset = n >= OFFSET_LEN ? ByteBuffer.wrap(plain).getLong() : -1;
+				if (offset < 0 || offset >= size || offset % CHUNK_LEN != 0
+						|| n - OFFSET_LEN != Math.min(CHUNK_LEN, size - offset)) {
+					ok = false;
+					return;
+				}
+				int i = (int) (offset / CHUNK_LEN);
+				ByteBuffer buf = ByteBuffer.wrap(plain, OFFSET_LEN, n - OFFSET_LEN);
+				while (buf.hasRemaining()) {
+					partial.write(buf, offset + buf.position() - OFFSET_LEN);
+				}
+
+				// the record goes after the data; a crash may still keep the record
+				// and lose the data, which load() catches on the next attempt
+				digests[i] = digest(plain, n);
+				appendRecord(manifest, i);
+				if (++sinceCheckpoint >= CHECKPOINT_CHUNKS) {
+					checkpoint();
+				}
+			} catch (IOException e) {
+				ok = false;
+			} finally {
+				framePool.release(plain);
+			}
+		}
+
+		public boolean verify(byte[] root) {
+			if (!ok || root == null || getHeld() != chunks) {
+				return false;
+			}
+			try {
+				return MessageDigest.isEqual(root(channel.getKey(), digests), root);
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Forces written chunks to disk before the manifest that lists them.
+		 */
+		private void checkpoint() throws IOException {
+			partial.force(false);
+			manifest.force(false);
+			sinceCheckpoint = 0;
+		}
+
+		/**
+		 * Moves the finished file into place and removes the manifest.
+		 *
+		 * @param target
+		 *            the destination file
+		 * @throws IOException
+		 *             if the file cannot be moved
+		 */
+		public void commit(Path target) throws IOException {
+			partial.force(false);
+			partial.close();
+			manifest.close();
+			try {
+				Files.move(partialPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(partialPath, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.deleteIfExists(manifestPath);
+		}
+
+		/**
+		 * Deletes the partial file and the manifest, after a failed check.
+		 */
+		public void discard() {
+			close();
+			try {
+				Files.deleteIfExists(partialPath);
+				Files.deleteIfExists(manifestPath);
+			} catch (IOException e) {
+				System.out.println("Error removing partial file.");
+			}
+		}
+
+		/**
+		 * Saves progress and closes the files, keeping them for a later
+		 * attempt.
+		 */
+		public void close() {
+			try {
+				if (partial.isOpen()) {
+					checkpoint();
+				}
+			} catch (IOException e) {
+				System.out.println("Error saving partial file.");
+			}
+			try {
+				partial.close();
+				manifest.close();
+			} catch (IOException e) {
+				System.out.println("Error closing partial file.");
+			}
+		}
+	}
+
+	/**
+	 * Parses a manifest message into an array of digests by chunk.
+	 */
+	private static byte[][] decodeManifest(byte[] message, int chunks) throws IOException {
+		if (message == null || message.length % RECORD_LEN != 0) {
+			throw new IOException("Bad manifest from server");
+		}
+		byte[][] present = new byte[chunks][];
+		ByteBuffer buf = ByteBuffer.wrap(message);
+		while (buf.hasRemaining()) {
+			int i = buf.getInt();
+			byte[] digest = new byte[DIGEST_LEN];
+			buf.get(digest);
+			if (i >= 0 && i < chunks) {
+				present[i] = digest;
+			}
+		}
+		return present;
+	}
+
+	/**
+	 * SHA-256 of one chunk's plaintext, offset included.
+	 */
+	private static byte[] digest(byte[] plain, int length) {
+		MessageDigest md = sha256.get();
+		md.update(plain, 0, length);
+		return md.digest();
+	}
+
+	/**
+	 * HMAC-SHA1 over all chunk digests in file order.
+	 */
+	private static byte[] root(SecretKeySpec keySpec, byte[][] digests) throws IOException {
+		try {
+			Mac mac = CryptoContext.get(keySpec).mac();
+			for (int i = 0; i < digests.length; i++) {
+				mac.update(digests[i]);
+			}
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+}
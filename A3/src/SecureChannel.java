@@ -0,0 +1,451 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The protection applied to every message of one connection. A new connection
+ * starts in the legacy mode, AES-CBC with a random IV per message and a
+ * separate HMAC-SHA1 wherever the protocol asks for one. After the key
+ * exchange the client may propose an AEAD suite; if the server supports one
+ * both sides switch to it, and from then on every message is encrypted and
+ * authenticated in one pass and carries no separate MAC.
+ *
+ * An AEAD frame is the 12 byte nonce followed by the ciphertext and the 16
+ * byte tag. The nonce is a 4 byte direction label and an 8 byte counter of the
+ * messages sent so far, so no nonce is ever used twice under one key without
+ * any randomness being needed. Messages read in order must have increasing
+ * counters, which stops a replayed, dropped-and-reordered or reflected frame.
+ * Range frames of parallel and resumable uploads are opened in any order and
+ * checked by their own offsets and hash trees instead.
+ */
+public class SecureChannel {
+	public static final String CBC = "AES-CBC-HMAC-SHA1";
+	public static final String AES_GCM = "AES-GCM";
+	public static final String CHACHA20_POLY1305 = "CHACHA20-POLY1305";
+
+	// AEAD suites a client proposes, most preferred first
+	private static final String[] PREFERRED = { AES_GCM, CHACHA20_POLY1305 };
+
+	public static final int NONCE_LEN = 12;
+	public static final int TAG_LEN = 16;
+
+	// bytes an AEAD frame adds to its plaintext
+	public static final int AEAD_OVERHEAD = NONCE_LEN + TAG_LEN;
+
+	// nonce prefixes, so the two directions never share a nonce
+	private static final int CLIENT_TO_SERVER = 0x43325320; // "C2S "
+	private static final int SERVER_TO_CLIENT = 0x53324320; // "S2C "
+
+	// this thread's cipher for each AEAD suite; the key and nonce change with
+	// every message, so one object per suite is enough
+	private static final ThreadLocal<Map<String, Cipher>> ciphers = new ThreadLocal<Map<String, Cipher>>() {
+		protected Map<String, Cipher> initialValue() {
+			return new HashMap<String, Cipher>();
+		}
+	};
+
+	private final SecretKeySpec key;
+	private final String suite;
+	private final SecretKeySpec aeadKey;
+	private final int sendLabel;
+	private final int receiveLabel;
+	private final AtomicLong sent = new AtomicLong();
+	private long lastReceived = -1; // guarded by this
+
+	private SecureChannel(SecretKeySpec key, String suite, SecretKeySpec aeadKey, boolean client) {
+		this.key = key;
+		this.suite = suite;
+		this.aeadKey = aeadKey;
+		this.sendLabel = client ? CLIENT_TO_SERVER : SERVER_TO_CLIENT;
+		this.receiveLabel = client ? SERVER_TO_CLIENT : CLIENT_TO_SERVER;
+	}
+
+	/**
+	 * @param key
+	 *            the secret key for AES and HMAC-SHA1
+	 * @return a channel in the legacy mode
+	 */
+	public static SecureChannel legacy(SecretKeySpec key) {
+		return new SecureChannel(key, CBC, null, true);
+	}
+
+	/**
+	 * Creates a channel for a negotiated suite. The AEAD key is derived from
+	 * the session key and the suite name, so it is never the key used for
+	 * AES-CBC or HMAC-SHA1.
+	 *
+	 * @param key
+	 *            the session key agreed by Diffie-Hellman
+	 * @param suite
+	 *            CBC or one of the AEAD suites
+	 * @param client
+	 *            true on the client's end of the connection
+	 * @return the channel
+	 * @throws GeneralSecurityException
+	 *             if the suite is unknown or not available
+	 */
+	public static SecureChannel create(SecretKeySpec key, String suite, boolean client)
+			throws GeneralSecurityException {
+		if (CBC.equals(suite)) {
+			return legacy(key);
+		}
+		if (!isAvailable(suite)) {
+			throw new GeneralSecurityException("Unsupported cipher suite " + suite);
+		}
+		MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+		sha256.update(("A3 " + suite + " key").getBytes());
+		byte[] derived = sha256.digest(key.getEncoded());
+		int len = AES_GCM.equals(suite) ? CryptoUtilities.AES_KEY_LEN : derived.length;
+		String algorithm = AES_GCM.equals(suite) ? "AES" : "ChaCha20";
+		return new SecureChannel(key, suite, new SecretKeySpec(derived, 0, len, algorithm), client);
+	}
+
+	/**
+	 * @param suite
+	 *            a suite name
+	 * @return true if this JVM can run the suite
+	 */
+	public static boolean isAvailable(String suite) {
+		if (CBC.equals(suite)) {
+			return true;
+		}
+		try {
+			return transformation(suite) != null && cipher(suite) != null;
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param ticket
+	 *            true to also ask for a session ticket
+	 * @return the message a client sends to propose the AEAD suites it can run
+	 */
+	public static String proposal(boolean ticket) {
+		StringBuilder sb = new StringBuilder(CryptoUtilities.MODE_HEADER);
+		for (String suite : PREFERRED) {
+			if (isAvailable(suite)) {
+				if (sb.length() > CryptoUtilities.MODE_HEADER.length()) {
+					sb.append(',');
+				}
+				sb.append(suite);
+			}
+		}
+		if (ticket) {
+			sb.append(',').append(SessionTicket.REQUEST);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Picks the suite for a client's proposal: the first suite the client
+	 * listed that this side can run, or CBC if there is none.
+	 *
+	 * @param proposal
+	 *            the client's proposal, starting with MODE_HEADER
+	 * @return the chosen suite
+	 */
+	public static String choose(String proposal) {
+		String list = proposal.substring(CryptoUtilities.MODE_HEADER.length());
+		for (String suite : list.split(",")) {
+			if (!CBC.equals(suite) && isAvailable(suite.trim())) {
+				return suite.trim();
+			}
+		}
+		return CBC;
+	}
+
+	/**
+	 * Tells whether a proposal asks for a session ticket, or a choice says
+	 * that one follows. Servers that predate tickets skip the entry as an
+	 * unknown suite and never list it in their choice.
+	 *
+	 * @param message
+	 *            a proposal or choice whose HMAC has been checked
+	 * @return true if it lists SessionTicket.REQUEST
+	 */
+	public static boolean listsTicket(byte[] message) {
+		String list = new String(CryptoUtilities.extract_message(message))
+				.substring(CryptoUtilities.MODE_HEADER.length());
+		for (String entry : list.split(",")) {
+			if (SessionTicket.REQUEST.equals(entry.trim())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param message
+	 *            a decrypted message received in place of a file name
+	 * @return true if it is a proposal or a choice of suite
+	 */
+	public static boolean isNegotiation(byte[] message) {
+		return message != null && new String(message).startsWith(CryptoUtilities.MODE_HEADER);
+	}
+
+	/**
+	 * The negotiation messages are sent in the legacy mode with an HMAC-SHA1
+	 * appended, so that tampering with the IV cannot quietly turn a proposal
+	 * or a choice into a weaker one.
+	 *
+	 * @param ticket
+	 *            true to also ask for a session ticket
+	 * @return the client's proposal, to be sent on this channel
+	 */
+	public byte[] proposalMessage(boolean ticket) {
+		return CryptoUtilities.append_hash(proposal(ticket).getBytes(), key);
+	}
+
+	/**
+	 * @param message
+	 *            the client's proposal as received on this channel
+	 * @return the suite chosen for it, or null if the proposal is not authentic
+	 */
+	public String choose(byte[] message) {
+		if (!isNegotiation(message) || !CryptoUtilities.verify_hash(message, key)) {
+			return null;
+		}
+		return choose(new String(CryptoUtilities.extract_message(message)));
+	}
+
+	/**
+	 * @param suite
+	 *            the suite chosen by the server
+	 * @param ticket
+	 *            true if a session ticket follows on the new channel
+	 * @return the server's reply, to be sent on this channel
+	 */
+	public byte[] choiceMessage(String suite, boolean ticket) {
+		String choice = CryptoUtilities.MODE_HEADER + suite + (ticket ? "," + SessionTicket.REQUEST : "");
+		return CryptoUtilities.append_hash(choice.getBytes(), key);
+	}
+
+	/**
+	 * @param message
+	 *            the server's reply as received on this channel
+	 * @return the suite the server chose, or null if the reply is not
+	 *         authentic
+	 */
+	public String chosen(byte[] message) {
+		if (!isNegotiation(message) || !CryptoUtilities.verify_hash(message, key)) {
+			return null;
+		}
+		String choice = new String(CryptoUtilities.extract_message(message))
+				.substring(CryptoUtilities.MODE_HEADER.length());
+		int end = choice.indexOf(',');
+		return end < 0 ? choice : choice.substring(0, end);
+	}
+
+	/**
+	 * @return the secret key for AES-CBC and HMAC-SHA1, used for the hash trees
+	 *         of range uploads in every mode
+	 */
+	public SecretKeySpec getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the suite in use
+	 */
+	public String getSuite() {
+		return suite;
+	}
+
+	/**
+	 * @return true if messages are authenticated by the cipher itself
+	 */
+	public boolean isAead() {
+		return aeadKey != null;
+	}
+
+	/**
+	 * Encrypts part of the given array as one frame.
+	 *
+	 * @param message
+	 *            array holding the message
+	 * @param offset
+	 *            start of the message in the array
+	 * @param length
+	 *            length of the message
+	 * @return the frame, or null if encryption failed
+	 */
+	public byte[] seal(byte[] message, int offset, int length) {
+		if (!isAead()) {
+			return CryptoUtilities.encrypt(message, offset, length, key);
+		}
+		try {
+			byte[] ret = new byte[NONCE_LEN + length + TAG_LEN];
+			ByteBuffer.wrap(ret).putInt(sendLabel).putLong(sent.getAndIncrement());
+			Cipher cipher = init(Cipher.ENCRYPT_MODE, ret);
+			cipher.doFinal(message, offset, length, ret, NONCE_LEN);
+			return ret;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * @param message
+	 *            the message
+	 * @return the frame, or null if encryption failed
+	 */
+	public byte[] seal(byte[] message) {
+		return seal(message, 0, message.length);
+	}
+
+	/**
+	 * Decrypts the first length bytes of a frame into the output buffer.
+	 *
+	 * @param frame
+	 *            the frame
+	 * @param length
+	 *            length of the frame
+	 * @param output
+	 *            buffer for the plaintext
+	 * @param ordered
+	 *            true if the frame must come after every ordered frame opened
+	 *            before it, false for range frames that arrive in any order
+	 * @return length of the plaintext, or -1 if the frame is not authentic
+	 */
+	public int open(byte[] frame, int length, byte[] output, boolean ordered) {
+		if (!isAead()) {
+			return CryptoUtilities.decrypt(frame, length, key, output);
+		}
+		if (length < AEAD_OVERHEAD) {
+			return -1;
+		}
+		ByteBuffer nonce = ByteBuffer.wrap(frame);
+		if (nonce.getInt() != receiveLabel) {
+			return -1;
+		}
+		long counter = nonce.getLong();
+		try {
+			Cipher cipher = init(Cipher.DECRYPT_MODE, frame);
+			int n = cipher.doFinal(frame, NONCE_LEN, length - NONCE_LEN, output, 0);
+			if (ordered) {
+				synchronized (this) {
+					if (counter <= lastReceived) {
+						return -1;
+					}
+					lastReceived = counter;
+				}
+			}
+			return n;
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Decrypts a frame read in order.
+	 *
+	 * @param frame
+	 *            the frame
+	 * @param length
+	 *            length of the frame
+	 * @return the plaintext, or null if the frame is not authentic
+	 */
+	public byte[] open(byte[] frame, int length) {
+		if (!isAead()) {
+			return CryptoUtilities.decrypt(frame, length, key);
+		}
+		byte[] plain = new byte[Math.max(0, length - AEAD_OVERHEAD)];
+		int n = open(frame, length, plain, true);
+		return n == plain.length ? plain : null;
+	}
+
+	/**
+	 * Encrypts a message and writes it to the supplied stream.
+	 *
+	 * @param message
+	 *            the message
+	 * @param out
+	 *            the output stream
+	 * @throws IOException
+	 *             if the stream fails
+	 */
+	public void send(byte[] message, DataOutputStream out) throws IOException {
+		CryptoUtilities.send(seal(message), out);
+	}
+
+	/**
+	 * Reads and decrypts the next control message, of at most
+	 * MAX_CONTROL_LEN bytes.
+	 *
+	 * @param in
+	 *            the input stream
+	 * @return the plaintext, or null if the message is not authentic
+	 * @throws IOException
+	 *             if the stream fails or the message is too large
+	 */
+	public byte[] receive(DataInputStream in) throws IOException {
+		return receive(in, CryptoUtilities.MAX_CONTROL_LEN);
+	}
+
+	/**
+	 * Reads and decrypts the next message.
+	 *
+	 * @param in
+	 *            the input stream
+	 * @param maxLen
+	 *            largest plaintext expected, the frame may add up to
+	 *            MESSAGE_OVERHEAD bytes
+	 * @return the plaintext, or null if the message is not authentic
+	 * @throws IOException
+	 *             if the stream fails or the message is too large
+	 */
+	public byte[] receive(DataInputStream in, long maxLen) throws IOException {
+		int limit = (int) Math.min(Integer.MAX_VALUE - 8, maxLen + CryptoUtilities.MESSAGE_OVERHEAD);
+		byte[] frame = CryptoUtilities.receive(in, limit);
+		return open(frame, frame.length);
+	}
+
+	/**
+	 * Sets up this thread's cipher for the nonce at the start of a frame.
+	 */
+	private Cipher init(int mode, byte[] frame) throws GeneralSecurityException {
+		Cipher cipher = cipher(suite);
+		if (AES_GCM.equals(suite)) {
+			cipher.init(mode, aeadKey, new GCMParameterSpec(TAG_LEN * 8, frame, 0, NONCE_LEN));
+		} else {
+			cipher.init(mode, aeadKey, new IvParameterSpec(frame, 0, NONCE_LEN));
+		}
+		return cipher;
+	}
+
+	private static Cipher cipher(String suite) throws GeneralSecurityException {
+		Map<String, Cipher> map = ciphers.get();
+		Cipher cipher = map.get(suite);
+		if (cipher == null) {
+			String transformation = transformation(suite);
+			if (transformation == null) {
+				throw new GeneralSecurityException("Unknown cipher suite " + suite);
+			}
+			cipher = Cipher.getInstance(transformation);
+			map.put(suite, cipher);
+		}
+		return cipher;
+	}
+
+	private static String transformation(String suite) {
+		if (AES_GCM.equals(suite)) {
+			return "AES/GCM/NoPadding";
+		}
+		if (CHACHA20_POLY1305.equals(suite)) {
+			return "ChaCha20-Poly1305";
+		}
+		return null;
+	}
+}
@@ -1,6 +1,11 @@
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.*;
-import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class is a secure file transfer server. Opens a server socket and
@@ -11,10 +16,17 @@ import java.util.Vector;
  * @version 1.0, October 23, 2013
  */
 public class Server {
+	// how long a graceful shutdown waits for transfers in progress
+	public static final long DRAIN_TIMEOUT_MILLIS = 60000;
+
 	private ServerSocket serversock;
-	private Vector<ServerThread> serverthreads; // holds the active threads
-	private boolean shutdown; // allows clients to shutdown the server
+	private SessionRegistry<ServerThread> serverthreads; // holds the active threads, by client id
+	private volatile boolean shutdown; // allows clients to shutdown the server
+	private boolean multiSession; // keep serving after a transfer completes
 	private int clientcounter; // id numbers for the clients
+	private ExecutorService handlers; // runs the ServerThreads, null to start them as threads
+	private AdmissionController admission = new AdmissionController(); // limits work in progress
+	private TicketCache tickets = new TicketCache(); // session tickets, null to always do the full exchange
 
 	private boolean debug = false;
 
@@ -37,8 +49,8 @@ public class Server {
 			return;
 		}
 
-		// Server socket open, make a vector to store active threads
-		serverthreads = new Vector<ServerThread>(0, 1);
+		// Server socket open, make a registry to store active threads
+		serverthreads = new SessionRegistry<ServerThread>();
 
 		// Output connection info for the server
 		System.out.println("Server IP address: " + serversock.getInetAddress().getHostAddress() + ",  port " + port);
@@ -51,6 +63,103 @@ public class Server {
 		return debug;
 	}
 
+	/**
+	 * Runs each connection's ServerThread through the given executor instead
+	 * of starting it as its own platform thread.
+	 * 
+	 * @param executor
+	 *            executor for the connection handlers, or null for one
+	 *            platform thread per connection
+	 */
+	public void setExecutor(ExecutorService executor) {
+		handlers = executor;
+	}
+
+	/**
+	 * Replaces the default admission limits.
+	 * 
+	 * @param controller
+	 *            the admission controller to use for new connections
+	 */
+	public void setAdmission(AdmissionController controller) {
+		admission = controller;
+	}
+
+	/**
+	 * @return the admission controller, shared by all connections
+	 */
+	public AdmissionController getAdmission() {
+		return admission;
+	}
+
+	/**
+	 * Replaces the default ticket cache.
+	 * 
+	 * @param cache
+	 *            the cache for session tickets, or null to turn session
+	 *            resumption off
+	 */
+	public void setTickets(TicketCache cache) {
+		tickets = cache;
+	}
+
+	/**
+	 * @return the ticket cache shared by all connections, or null if session
+	 *         resumption is off
+	 */
+	public TicketCache getTickets() {
+		return tickets;
+	}
+
+	/**
+	 * Creates an executor that starts a new virtual thread for every task.
+	 * Virtual threads need Java 21, on older runtimes a cached pool of
+	 * platform threads is returned instead.
+	 * 
+	 * @return the executor
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Virtual threads need Java 21 or later, using a cached thread pool.");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * Selects multi-session mode, in which a finished connection only removes
+	 * its own session and the server keeps accepting clients until it is shut
+	 * down by an admin command or a signal.
+	 * 
+	 * @param setMultiSession
+	 *            true to keep serving after a transfer
+	 */
+	public void setMultiSession(boolean setMultiSession) {
+		multiSession = setMultiSession;
+	}
+
+	/**
+	 * @return true if the server keeps serving after a transfer
+	 */
+	public boolean isMultiSession() {
+		return multiSession;
+	}
+
+	/**
+	 * @return number of connections currently being served
+	 */
+	public int getActiveCount() {
+		return serverthreads.size();
+	}
+
+	/**
+	 * @return number of connections accepted since the server started
+	 */
+	public long getAcceptedCount() {
+		return serverthreads.getRegistered();
+	}
+
 	/**
 	 * Allows threads to check and see if the server is shutting down.
 	 * 
@@ -61,21 +170,39 @@ public class Server {
 	}
 
 	/**
-	 * Called by a thread who's client has asked to exit. Gets rid of the
-	 * thread.
+	 * Called by every thread as it exits, once. Gets rid of the thread.
 	 * 
 	 * @param st
-	 *            The ServerThread to remove from the vector of active
+	 *            The ServerThread to remove from the registry of active
 	 *            connections.
 	 */
 	public void kill(ServerThread st) {
 		System.out.println("Killing Client " + st.getID() + ".");
+		serverthreads.remove(st.getID());
+	}
+
+	/**
+	 * Graceful shutdown. Stops accepting new clients, waits for the transfers
+	 * in progress to finish, then closes whatever is left.
+	 * 
+	 * @param timeoutMillis
+	 *            how long to wait for transfers in progress
+	 */
+	public void drain(long timeoutMillis) {
+		shutdown = true;
+		System.out.println("Draining Server, waiting for " + getActiveCount() + " client(s).");
+		try {
+			serversock.close();
+		} catch (IOException e) {
+			System.out.println("Could not close server socket.");
+		}
 
-		/* Find the thread in the vector and remove it. */
-		for (int i = 0; i < serverthreads.size(); i++) {
-			if (serverthreads.elementAt(i) == st)
-				serverthreads.remove(i);
+		try {
+			serverthreads.awaitEmpty(timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
+		killall();
 	}
 
 	/**
@@ -91,14 +218,14 @@ public class Server {
 		 * flag. The thread will then exit itself when it sees shutdown is true.
 		 * Then exits.
 		 */
-		for (int i = serverthreads.size() - 1; i >= 0; i--) {
+		for (ServerThread st : serverthreads.snapshot()) {
 			try {
-				System.out.println("Killing Client " + serverthreads.elementAt(i).getID() + ".");
-				serverthreads.elementAt(i).getSocket().close();
+				// the thread reports itself through kill() as it exits
+				st.getSocket().close();
 			} catch (IOException e) {
 				System.out.println("Could not close socket.");
 			}
-			serverthreads.remove(i);
+			serverthreads.remove(st.getID());
 		}
 		try {
 			serversock.close();
@@ -125,13 +252,21 @@ public class Server {
 
 				/*
 				 * Create a new thread to deal with the client, add it to the
-				 * vector of open connections. Finally, start the thread's
-				 * execution. Start method makes the threads go by calling their
-				 * run() methods.
+				 * registry of open connections. Finally, start the thread's
+				 * execution once the admission controller lets it, or turn
+				 * the client away if too many are already waiting.
 				 */
 				st = new ServerThread(client, this, clientcounter++);
-				serverthreads.add(st);
-				st.start();
+				serverthreads.register(st.getID(), st);
+				final ServerThread admitted = st;
+				if (!admission.admit(new Runnable() {
+					public void run() {
+						start(admitted);
+					}
+				})) {
+					serverthreads.remove(st.getID());
+					reject(client);
+				}
 			} catch (IOException e) {
 				/*
 				 * Server Socket is closed, probably because a client told the
@@ -141,13 +276,148 @@ public class Server {
 		}
 	}
 
+	/**
+	 * Starts a ServerThread. Start method makes the threads go by calling
+	 * their run() methods. With an executor the same run() method is handed to
+	 * the executor instead.
+	 */
+	private void start(ServerThread st) {
+		if (handlers != null) {
+			handlers.execute(st);
+		} else {
+			st.start();
+		}
+	}
+
+	/**
+	 * Tells a client the server is busy and closes the connection.
+	 * 
+	 * @param client
+	 *            the client's socket
+	 */
+	static void reject(Socket client) {
+		System.out.println("Server busy, turning away client on machine " + client.getInetAddress().getHostAddress() + ".");
+		try {
+			CryptoUtilities.send((AdmissionController.GREETING_RETRY + AdmissionController.RETRY_AFTER_MILLIS).getBytes(),
+					new DataOutputStream(client.getOutputStream()));
+		} catch (IOException e) {
+			// the client will see the connection close instead
+		}
+		try {
+			client.close();
+		} catch (IOException e) {
+			System.out.println("Could not close socket.");
+		}
+	}
+
+	/**
+	 * Reads admin commands from the console and installs a shutdown hook, so
+	 * that a long-running server can be stopped cleanly. Exactly one of the
+	 * servers is non-null.
+	 * 
+	 * @param s
+	 *            a multi-session server
+	 * @param ns
+	 *            a non-blocking server
+	 */
+	private static void startAdminConsole(final Server s, final NioServer ns) {
+		final Runnable drain = new Runnable() {
+			public void run() {
+				if (s != null) {
+					s.drain(DRAIN_TIMEOUT_MILLIS);
+				} else {
+					ns.drain(DRAIN_TIMEOUT_MILLIS);
+				}
+			}
+		};
+
+		Thread console = new Thread(new Runnable() {
+			public void run() {
+				BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in));
+				try {
+					String line;
+					while ((line = stdIn.readLine()) != null) {
+						line = line.trim();
+						if (line.equals("shutdown")) {
+							drain.run();
+							return;
+						} else if (line.equals("kill")) {
+							if (s != null) {
+								s.killall();
+							} else {
+								ns.shutdown();
+							}
+							return;
+						} else if (line.equals("status")) {
+							if (s != null) {
+								AdmissionController a = s.getAdmission();
+								System.out.println("Active clients: " + s.getActiveCount() + ", accepted: " + s.getAcceptedCount()
+										+ ", waiting: " + a.getWaiting() + ", turned away: " + a.getRejected()
+										+ ", in-flight bytes: " + a.getInFlightBytes());
+								printTickets(s.getTickets());
+							} else {
+								System.out.println("Active clients: " + ns.getActiveCount());
+								printTickets(ns.getTickets());
+							}
+							ExponentPool e = ExponentPool.getShared();
+							System.out.println("Random blocks ready: " + e.size() + ", exponents from blocks: "
+									+ e.getHits() + ", drawn directly: " + e.getMisses());
+						} else if (line.length() > 0) {
+							System.out.println("Commands: status, shutdown, kill");
+						}
+					}
+				} catch (IOException e) {
+					System.out.println("Admin console closed.");
+				}
+			}
+		}, "Server-console");
+		console.setDaemon(true);
+		console.start();
+
+		// SIGINT/SIGTERM: finish the transfers in progress before exiting
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				if (!(s != null ? s.getFlag() : ns.isShutdown())) {
+					drain.run();
+				}
+			}
+		}, "Server-shutdown"));
+	}
+
+	/**
+	 * Prints the session ticket counters for the status command.
+	 */
+	private static void printTickets(TicketCache t) {
+		if (t != null) {
+			System.out.println("Session tickets outstanding: " + t.size() + ", issued: " + t.getIssued()
+					+ ", resumed: " + t.getResumed() + ", refused: " + t.getRefused());
+		}
+	}
+
 	/**
 	 * Outputs usage instructions
 	 */
 	public static void printUsage() {
-		System.out.println("Usage: java Server port#");
-		System.out.println("     or java Server debug port#");
+		System.out.println("Usage: java Server port# [debug] [options]");
 		System.out.println(" - port is a positive integer identifying the port to connect to the server");
+		System.out.println(" - options:");
+		System.out.println("     nio       serve all clients from a few non-blocking event loop threads");
+		System.out.println("     virtual   run each client on a virtual thread (Java 21 or later)");
+		System.out.println("     multi     keep serving after each transfer, until told to shut down");
+		System.out.println("     handshakes=N  key exchanges run at once (default " + AdmissionController.DEFAULT_MAX_HANDSHAKES + ")");
+		System.out.println("     transfers=N   file transfers run at once (default " + AdmissionController.DEFAULT_MAX_TRANSFERS + ")");
+		System.out.println("     inflight=MB   memory all transfers may buffer (default "
+				+ (AdmissionController.DEFAULT_MAX_IN_FLIGHT_BYTES >> 20) + ")");
+		System.out.println("     queue=N       clients waiting for a key exchange before others are told to retry (default "
+				+ AdmissionController.DEFAULT_QUEUE_LENGTH + ")");
+		System.out.println("     tickets=N     session tickets outstanding at once, 0 to turn resumption off (default "
+				+ TicketCache.DEFAULT_MAX_TICKETS + ")");
+		System.out.println("     ticketlife=MIN minutes a session ticket can be used (default "
+				+ TicketCache.DEFAULT_LIFETIME_MILLIS / 60000 + ")");
+		System.out.println("     expbits=N     bits of the private DH exponent, at least " + ExponentPool.MIN_SHORT_BITS
+				+ ", or 0 for full length (default 0)");
+		System.out.println(" - in multi mode and with nio, type 'status', 'shutdown' (waits for transfers)");
+		System.out.println("   or 'kill' on the console; SIGINT/SIGTERM also shut down gracefully");
 	}
 
 	/**
@@ -158,25 +428,90 @@ public class Server {
 	 */
 	public static void main(String[] args) {
 		boolean setDebug = false;
+		boolean nio = false;
+		boolean virtual = false;
+		boolean multi = false;
+		int maxHandshakes = AdmissionController.DEFAULT_MAX_HANDSHAKES;
+		int maxTransfers = AdmissionController.DEFAULT_MAX_TRANSFERS;
+		long maxInFlight = AdmissionController.DEFAULT_MAX_IN_FLIGHT_BYTES;
+		int queueLength = AdmissionController.DEFAULT_QUEUE_LENGTH;
+		int maxTickets = TicketCache.DEFAULT_MAX_TICKETS;
+		long ticketLife = TicketCache.DEFAULT_LIFETIME_MILLIS;
+		int expBits = 0;
 
-		if (args.length < 1 || args.length > 2) {
+		if (args.length < 1) {
 			printUsage();
 			return;
 		}
 
-		// check if debug flag is being set
-		int port;
+		// check if debug flag or any options are being set
+		int port = Integer.parseInt(args[0]);
 
-		if (args.length == 2) {
-			if (args[1].compareTo("debug") == 0) {
-				setDebug = true;
-				port = Integer.parseInt(args[0]);
-			} else {
-				printUsage();
+		try {
+			for (int i = 1; i < args.length; i++) {
+				String value = args[i].substring(args[i].indexOf('=') + 1);
+				if (args[i].compareTo("debug") == 0) {
+					setDebug = true;
+				} else if (args[i].compareTo("nio") == 0) {
+					nio = true;
+				} else if (args[i].compareTo("virtual") == 0) {
+					virtual = true;
+				} else if (args[i].compareTo("multi") == 0) {
+					multi = true;
+				} else if (args[i].startsWith("handshakes=")) {
+					maxHandshakes = Integer.parseInt(value);
+				} else if (args[i].startsWith("transfers=")) {
+					maxTransfers = Integer.parseInt(value);
+				} else if (args[i].startsWith("inflight=")) {
+					maxInFlight = Long.parseLong(value) << 20;
+				} else if (args[i].startsWith("queue=")) {
+					queueLength = Integer.parseInt(value);
+				} else if (args[i].startsWith("tickets=")) {
+					maxTickets = Integer.parseInt(value);
+				} else if (args[i].startsWith("ticketlife=")) {
+					ticketLife = Long.parseLong(value) * 60000;
+				} else if (args[i].startsWith("expbits=")) {
+					expBits = Integer.parseInt(value);
+				} else {
+					printUsage();
+					return;
+				}
+			}
+		} catch (NumberFormatException e) {
+			printUsage();
+			System.out.println("Error:  option value is not a number.");
+			return;
+		}
+		if (maxHandshakes < 1 || maxTransfers < 1 || maxInFlight < 1 || queueLength < 1 || maxTickets < 0
+				|| ticketLife < 1) {
+			printUsage();
+			System.out.println("Error:  limits must be positive.");
+			return;
+		}
+		if (expBits != 0 && expBits < ExponentPool.MIN_SHORT_BITS) {
+			printUsage();
+			System.out.println("Error:  exponents must have at least " + ExponentPool.MIN_SHORT_BITS + " bits.");
+			return;
+		}
+		// start filling the pool before the first client arrives
+		ExponentPool.getShared().setShortBits(expBits);
+		TicketCache tickets = maxTickets > 0 ? new TicketCache(ticketLife, maxTickets) : null;
+
+		if (nio) {
+			// non-blocking server, runs until the process is stopped
+			NioServer ns;
+			try {
+				ns = new NioServer(port, setDebug, NioServer.DEFAULT_LOOPS, Runtime.getRuntime().availableProcessors());
+			} catch (IOException e) {
+				System.out.println("Could not create server socket.");
 				return;
 			}
-		} else {
-			port = Integer.parseInt(args[0]);
+			// no threads wait for a slot here, so only the total is capped
+			ns.setMaxConnections(maxHandshakes + maxTransfers + queueLength);
+			ns.setTickets(tickets);
+			startAdminConsole(null, ns);
+			ns.listen();
+			return;
 		}
 
 		// initialize server and socket connection
@@ -189,8 +524,28 @@ public class Server {
 			return;
 		}
 
+		if (virtual) {
+			s.setExecutor(newVirtualThreadExecutor());
+		}
+		s.setAdmission(new AdmissionController(maxHandshakes, maxTransfers, maxInFlight, queueLength));
+		s.setTickets(tickets);
+		if (multi) {
+			s.setMultiSession(true);
+			startAdminConsole(s, null);
+		}
+
 		// server listens to socket connections until told to shut down
 		s.listen();
+
+		// let running handlers finish, then release the executor's threads
+		if (s.handlers != null) {
+			s.handlers.shutdown();
+			try {
+				s.handlers.awaitTermination(DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 
 }
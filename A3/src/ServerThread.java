@@ -1,6 +1,8 @@
 import java.net.*;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import javax.crypto.spec.*;
 
 /**
@@ -18,6 +20,8 @@ public class ServerThread extends Thread
     private DataOutputStream out;
     private DataInputStream in;
     private SecretKeySpec key;   // AES encryption key
+    private SecureChannel channel;  // cipher suite in use on the connection
+    private long reserved = -1;  // in-flight bytes held for the transfer, -1 if none
    
 
 
@@ -80,44 +84,103 @@ public class ServerThread extends Thread
     public void getKey() {
 	debug("Getting key (seed) from user");
 
-	BigInteger sophie;	
-	BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in));
-	BigInteger pubKeyRec;
-	BigInteger sharedKey;
-	BigInteger g;
-	BigInteger pMinus2;
-	BigInteger b;
-	BigInteger gToBmodP;
+	KeyExchange exchange;
+	byte[] pubKeyRec;
+	byte[] sharedKey;
 	try {
-		sophie = new BigInteger(CryptoUtilities.receive(in));
-		g = new BigInteger(CryptoUtilities.receive(in));
-		pMinus2 = sophie.subtract(BigInteger.valueOf(2));
-		b = PrimeUtil.getExponent(pMinus2);
-		gToBmodP = g.modPow(b, sophie);
-		CryptoUtilities.send(gToBmodP.toByteArray(), out);
-		pubKeyRec = new BigInteger(CryptoUtilities.receive(in));
+		byte[] first = CryptoUtilities.receive(in);
+		if (CryptoUtilities.startsWith(first, SessionTicket.RESUME_HEADER)) {
+		    if (resumeSession(first))
+			return;
+		    first = CryptoUtilities.receive(in);
+		}
+		exchange = namedGroup(first);
+		if (exchange == null) {
+		    if (NamedGroups.requested(first) != null)
+			first = CryptoUtilities.receive(in);
+		    BigInteger sophie = new BigInteger(first);
+		    BigInteger g = new BigInteger(CryptoUtilities.receive(in));
+		    DHGroup group = new DHGroup(sophie, sophie.shiftRight(1), g);
+		    if (!group.isPlausible()) {
+			System.out.println("Client sent an invalid group.");
+			return;
+		    }
+		    exchange = new DHKeyExchange(group, false);
+		}
+		CryptoUtilities.send(exchange.publicValue(), out);
+		pubKeyRec = CryptoUtilities.receive(in);
 	} 
 	catch (IOException e) {
 	    System.out.println("Error getting seed from user.");
 	    return;
 	}
-	finally {
-	    try {
-		stdIn.close();
-	    }
-	    catch (IOException e) {
-		return;
-	    }
+	sharedKey = exchange.agree(pubKeyRec);
+	if (sharedKey == null) {
+	    System.out.println("Client sent an invalid public key.");
+	    return;
 	}
-	sharedKey = pubKeyRec.modPow(b, sophie);
 
 	// compute key:  1st 16 bytes of SHA-1 hash of seed
-	key = CryptoUtilities.key_from_seed(sharedKey.toByteArray());
+	key = CryptoUtilities.key_from_seed(sharedKey);
  	debug("Using key = " + CryptoUtilities.toHexString(key.getEncoded()));
+	channel = SecureChannel.legacy(key);
    }
 
 
 
+    /**
+     * Starts the key exchange in the group the client asked for by name.  A
+     * group this server does not know is answered with UNKNOWN, and the
+     * client follows up with a prime and generator of its own.
+     * @param first the first message of the key exchange
+     * @return the exchange, or null if the client sends its own group
+     * @throws IOException if the reply cannot be sent
+     */
+    private KeyExchange namedGroup(byte[] first) throws IOException {
+	String name = NamedGroups.requested(first);
+	if (name == null)
+	    return null;
+	KeyExchange exchange = NamedGroups.keyExchange(name, true);
+	if (exchange == null) {
+	    debug("Unknown group " + name);
+	    CryptoUtilities.send(NamedGroups.UNKNOWN.getBytes(), out);
+	    return null;
+	}
+	debug("Using group " + name);
+	return exchange;
+    }
+
+
+
+    /**
+     * Resumes a session from the client's ticket instead of running the key
+     * exchange.  A ticket that is not accepted is answered with FULL, and the
+     * client follows up with the prime.
+     * @param offer the client's resume message
+     * @return true if the session key is set
+     * @throws IOException if the reply cannot be sent
+     */
+    private boolean resumeSession(byte[] offer) throws IOException {
+	TicketCache tickets = parent.getTickets();
+	byte[] ticket = SessionTicket.offeredTicket(offer);
+	byte[] secret = null;
+	if (tickets != null && ticket != null)
+	    secret = tickets.redeem(ticket);
+	if (secret == null) {
+	    debug("Session ticket refused");
+	    CryptoUtilities.send(SessionTicket.FULL.getBytes(), out);
+	    return false;
+	}
+	byte[] serverNonce = SessionTicket.newNonce();
+	CryptoUtilities.send(SessionTicket.resumedMessage(serverNonce), out);
+	key = SessionTicket.resumedKey(secret, SessionTicket.offeredNonce(offer), serverNonce);
+	debug("Resumed session, using key = " + CryptoUtilities.toHexString(key.getEncoded()));
+	channel = SecureChannel.legacy(key);
+	return true;
+    }
+
+
+
     /**
      * Encrypted file transfer
      * @return true if file transfer was successful
@@ -125,11 +188,18 @@ public class ServerThread extends Thread
     public boolean receiveFile() {
 	debug("Starting File Transfer");
 
-	// get the output file name
+	// get the output file name, or the client's choice of cipher suites
+	// followed by the name
 	String outfilename;
 	try {
 	    debug("Receiving output file name");
-	    outfilename = new String(CryptoUtilities.receiveAndDecrypt(key,in));
+	    byte[] name = channel.receive(in);
+	    if (SecureChannel.isNegotiation(name)) {
+		if (!negotiate(name))
+		    return false;
+		name = channel.receive(in);
+	    }
+	    outfilename = new String(name);
 	    debug("Got file name = " + outfilename);
 	}
 	catch (IOException e) {
@@ -138,6 +208,108 @@ public class ServerThread extends Thread
 	    return false;
 	}
 
+	if (outfilename.equals(CryptoUtilities.BATCH_HEADER))
+	    return receiveBatch();
+
+	boolean fileOK = receiveItem(outfilename);
+	close();
+	return fileOK;
+    }
+
+
+
+    /**
+     * Picks the cipher suite for the rest of the connection from the client's
+     * proposal and tells the client which one it is.  A client that never
+     * proposes stays in the legacy mode.  If the client asks for a session
+     * ticket it follows on the new channel.
+     * @param proposal the client's proposal
+     * @return true if both sides now use the chosen suite
+     */
+    private boolean negotiate(byte[] proposal) {
+	String suite = channel.choose(proposal);
+	if (suite == null) {
+	    System.out.println("Cipher suite proposal failed its integrity check.");
+	    close();
+	    return false;
+	}
+	debug("Using cipher suite " + suite);
+	TicketCache tickets = parent.getTickets();
+	boolean ticket = tickets != null && SecureChannel.listsTicket(proposal);
+	try {
+	    channel.send(channel.choiceMessage(suite, ticket), out);
+	    channel = SecureChannel.create(key, suite, false);
+	    if (ticket) {
+		debug("Issuing session ticket");
+		channel.send(tickets.issue(key), out);
+	    }
+	}
+	catch (Exception e) {
+	    System.out.println("Error switching to cipher suite " + suite);
+	    close();
+	    return false;
+	}
+	return true;
+    }
+
+
+
+    /**
+     * Receives files over the same session until the client ends the batch.
+     * Each file is acknowledged on its own.
+     * @return true if every file was transferred successfully
+     */
+    private boolean receiveBatch() {
+	debug("Starting batch");
+	int count = 0;
+	int passed = 0;
+	while (true) {
+	    String outfilename;
+	    try {
+		debug("Receiving output file name");
+		outfilename = new String(channel.receive(in));
+	    }
+	    catch (IOException e) {
+		System.out.println("Error receiving the output file name");
+		close();
+		return false;
+	    }
+	    if (outfilename.equals(CryptoUtilities.BATCH_END))
+		break;
+
+	    // a batch usually fills a directory that does not exist yet
+	    try {
+		Files.createDirectories(Paths.get(outfilename).toAbsolutePath().getParent());
+	    }
+	    catch (IOException e) {
+		System.out.println("Error creating output directory.");
+	    }
+
+	    count++;
+	    if (receiveItem(outfilename))
+		passed++;
+	    endTransfer();
+
+	    // the item failed without a way to carry on
+	    if (sock.isClosed())
+		return false;
+	}
+
+	System.out.println("Batch complete, " + passed + " of " + count + " files written.");
+	close();
+	return passed == count;
+    }
+
+
+
+    /**
+     * Receives one file: its size, then its contents, then sends the
+     * acknowledgement.  Closes the connection only on errors it cannot
+     * recover from.
+     * @param outfilename destination file
+     * @return true if file transfer was successful
+     */
+    private boolean receiveItem(String outfilename) {
 	System.out.println("Output file: " + outfilename);
 
 
@@ -146,7 +318,41 @@ public class ServerThread extends Thread
 	int size;
 	try {
 	    debug("Receiving file size");
-	    size = Integer.parseInt(new String(CryptoUtilities.receiveAndDecrypt(key,in)));	
+	    String sizeMsg = new String(channel.receive(in));
+	    if (sizeMsg.startsWith(CryptoUtilities.STREAM_HEADER)) {
+		long streamSize = Long.parseLong(sizeMsg.substring(CryptoUtilities.STREAM_HEADER.length()));
+		System.out.println("File size = " + streamSize + " (streamed)");
+		// only one frame and one chunk are held in memory
+		if (!beginTransfer(2L * CryptoUtilities.STREAM_FRAME_LEN))
+		    return false;
+		return receiveFileStream(outfilename, streamSize, false, null);
+	    }
+	    if (sizeMsg.startsWith(ParallelTransfer.HEADER)) {
+		long streamSize = Long.parseLong(sizeMsg.substring(ParallelTransfer.HEADER.length()));
+		System.out.println("File size = " + streamSize + " (parallel)");
+		// a frame and a plaintext buffer for each range being decrypted
+		if (!beginTransfer(2L * (2 * Runtime.getRuntime().availableProcessors() + 1) * CryptoUtilities.STREAM_FRAME_LEN))
+		    return false;
+		return receiveFileStream(outfilename, streamSize, true, null);
+	    }
+	    if (sizeMsg.startsWith(CtrEngine.HEADER)) {
+		String[] fields = sizeMsg.substring(CtrEngine.HEADER.length()).split(" ");
+		long streamSize = Long.parseLong(fields[0]);
+		System.out.println("File size = " + streamSize + " (counter mode)");
+		CtrEngine ctr = new CtrEngine(key, Long.parseLong(fields[1]), streamSize, null);
+		// one window being read and one being decrypted
+		if (!beginTransfer(2L * CtrEngine.WINDOW_LEN))
+		    return false;
+		return receiveFileStream(outfilename, streamSize, false, ctr);
+	    }
+	    if (sizeMsg.startsWith(ResumableTransfer.HEADER)) {
+		long streamSize = Long.parseLong(sizeMsg.substring(ResumableTransfer.HEADER.length()));
+		System.out.println("File size = " + streamSize + " (resumable)");
+		if (!beginTransfer(2L * CryptoUtilities.STREAM_FRAME_LEN))
+		    return false;
+		return receiveFileResumable(outfilename, streamSize);
+	    }
+	    size = Integer.parseInt(sizeMsg);	
 	    debug("Got file size = " + size);
 	}
 	catch (IOException e) {
@@ -156,6 +362,10 @@ public class ServerThread extends Thread
 
 	}
 
+	// the ciphertext and the plaintext are both held in memory
+	if (!beginTransfer(2L * size))
+	    return false;
+
 	System.out.println("File size = " + size);
 
 
@@ -164,7 +374,7 @@ public class ServerThread extends Thread
 	byte[] hashed_plaintext;
 	try {
 	    debug("Receiving and decrypting file with MAC appended");
-	    hashed_plaintext = CryptoUtilities.receiveAndDecrypt(key,in);
+	    hashed_plaintext = channel.receive(in, size + CryptoUtilities.HMAC_SHA1_LEN);
 	}
 	catch (IOException e) {
 	    System.out.println("Error receiving encrypted file");
@@ -176,18 +386,23 @@ public class ServerThread extends Thread
 	// check validity of MAC.  Write to the file if valid.
 	debug("Checking MAC");
 	boolean fileOK = false;
-	if (CryptoUtilities.verify_hash(hashed_plaintext,key)) {
+	int length = -1;
+	if (channel.isAead())
+	    // the cipher has checked the tag, there is no separate MAC
+	    length = hashed_plaintext == null ? -1 : hashed_plaintext.length;
+	else if (CryptoUtilities.verify_hash(hashed_plaintext,key))
+	    length = hashed_plaintext.length - CryptoUtilities.HMAC_SHA1_LEN;
+	if (length >= 0) {
 	    debug("Message digest OK.  Writing file.");
 	    System.out.println("Message digest OK. Writing file");
 
-	    // extract plaintext and output to file
-	    byte[] plaintext = CryptoUtilities.extract_message(hashed_plaintext);
+	    // output the plaintext to file, leaving the MAC behind
 
 	    // writing file
 	    FileOutputStream outfile = null;
 	    try {
 		outfile = new FileOutputStream(outfilename);
-		outfile.write(plaintext,0,plaintext.length);
+		outfile.write(hashed_plaintext,0,length);
 		outfile.close();
 	    }
 	    catch (IOException e) {
@@ -211,7 +426,7 @@ public class ServerThread extends Thread
 	    // send acknowledgement to client
 	    try {
 		debug("Sending \"passed\" acknowledgement.");
-		CryptoUtilities.encryptAndSend("Passed".getBytes(),key,out);
+		channel.send("Passed".getBytes(), out);
 	    }
 	    catch (IOException e) {
 		System.out.println("Error sending passed acknowledgement.");
@@ -226,7 +441,7 @@ public class ServerThread extends Thread
 
 	    try {
 		debug("Sending \"Failed\" acknowledgement.");
-		CryptoUtilities.encryptAndSend("Failed".getBytes(),key,out);
+		channel.send("Failed".getBytes(), out);
 	    }
 	    catch (IOException e) {
 		System.out.println("Error sending failed acknowledgement.");
@@ -235,7 +450,194 @@ public class ServerThread extends Thread
 	    }
 	}
 
-	close();
+	return fileOK;
+    }
+
+
+
+    /**
+     * Waits until the server's admission controller has room for this
+     * transfer.  The reservation is released when the thread finishes.
+     * @param bytes memory the transfer will use
+     * @return false if interrupted while waiting
+     */
+    private boolean beginTransfer(long bytes) {
+	debug("Waiting for a transfer slot");
+	try {
+	    reserved = parent.getAdmission().beginTransfer(bytes);
+	    return true;
+	}
+	catch (InterruptedException e) {
+	    System.out.println("Interrupted waiting for a transfer slot.");
+	    close();
+	    return false;
+	}
+    }
+
+
+
+    /**
+     * Releases the current transfer's reservation, if any.
+     */
+    private void endTransfer() {
+	if (reserved >= 0) {
+	    parent.getAdmission().endTransfer(reserved);
+	    reserved = -1;
+	}
+    }
+
+
+
+    /**
+     * Streamed file transfer.  Each frame is decrypted and written straight
+     * to a temporary file next to the destination, which is renamed into
+     * place only once the final MAC check has passed.
+     * @param outfilename destination file
+     * @param size number of bytes the client announced
+     * @param parallel true if the ranges come from a parallel upload
+     * @param ctr the engine for a counter-mode upload, or null
+     * @return true if file transfer was successful
+     */
+    private boolean receiveFileStream(String outfilename, long size, boolean parallel, CtrEngine ctr) {
+	debug("Receiving and decrypting streamed file");
+
+	Path target = Paths.get(outfilename).toAbsolutePath();
+	Path temp;
+	boolean fileOK;
+	try {
+	    temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".part");
+	}
+	catch (IOException e) {
+	    System.out.println("Error creating temporary file.");
+	    close();
+	    return false;
+	}
+
+	FileChannel outfile = null;
+	try {
+	    outfile = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	    if (ctr != null)
+		fileOK = ctr.receive(in, outfile, channel);
+	    else if (parallel)
+		fileOK = ParallelTransfer.receive(channel, in, size, outfile);
+	    else
+		fileOK = CryptoUtilities.receiveAndDecryptStream(channel, in, size, outfile);
+	    outfile.force(false);
+	    outfile.close();
+
+	    if (fileOK) {
+		debug("Message digest OK.  Moving file into place.");
+		try {
+		    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+		    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	    }
+	}
+	catch (IOException e) {
+	    System.out.println("Error receiving encrypted file");
+	    close();
+	    return false;
+	}
+	finally {
+	    try {
+		if (outfile != null)
+		    outfile.close();
+		Files.deleteIfExists(temp);
+	    }
+	    catch (IOException e) {
+		System.out.println("Error removing temporary file.");
+	    }
+	}
+
+	// send acknowledgement to client
+	try {
+	    if (fileOK) {
+		debug("Sending \"passed\" acknowledgement.");
+		channel.send("Passed".getBytes(), out);
+		System.out.println("File written successfully.");
+	    }
+	    else {
+		System.out.println("Integrity check failed.  File not written.");
+		debug("Sending \"Failed\" acknowledgement.");
+		channel.send("Failed".getBytes(), out);
+	    }
+	}
+	catch (IOException e) {
+	    System.out.println("Error sending acknowledgement.");
+	    close();
+	    return fileOK;
+	}
+
+	return fileOK;
+    }
+
+
+
+    /**
+     * Resumable file transfer.  Chunks are written into a partial file next
+     * to the destination and recorded in its manifest, both of which are kept
+     * if the connection drops so that the client can pick up where it left
+     * off.  The partial file is renamed into place once the whole file has
+     * been checked, and deleted if the check fails.
+     * @param outfilename destination file
+     * @param size number of bytes the client announced
+     * @return true if file transfer was successful
+     */
+    private boolean receiveFileResumable(String outfilename, long size) {
+	debug("Receiving and decrypting resumable file");
+
+	Path target = Paths.get(outfilename).toAbsolutePath();
+	ResumableTransfer.Receiver partial;
+	try {
+	    partial = new ResumableTransfer.Receiver(channel, target, size);
+	}
+	catch (IOException e) {
+	    System.out.println("Error opening partial file: " + e.getMessage());
+	    close();
+	    return false;
+	}
+	debug("Already holding " + partial.getHeld() + " chunks");
+
+	boolean fileOK;
+	try {
+	    fileOK = ResumableTransfer.receive(channel, in, out, partial);
+	    if (fileOK) {
+		debug("Message digest OK.  Moving file into place.");
+		partial.commit(target);
+	    }
+	    else {
+		partial.discard();
+	    }
+	}
+	catch (IOException e) {
+	    // keep what has arrived for the next attempt
+	    System.out.println("Error receiving encrypted file, keeping partial file");
+	    partial.close();
+	    close();
+	    return false;
+	}
+
+	// send acknowledgement to client
+	try {
+	    if (fileOK) {
+		debug("Sending \"passed\" acknowledgement.");
+		channel.send("Passed".getBytes(), out);
+		System.out.println("File written successfully.");
+	    }
+	    else {
+		System.out.println("Integrity check failed.  File not written.");
+		debug("Sending \"Failed\" acknowledgement.");
+		channel.send("Failed".getBytes(), out);
+	    }
+	}
+	catch (IOException e) {
+	    System.out.println("Error sending acknowledgement.");
+	    close();
+	    return fileOK;
+	}
+
 	return fileOK;
     }
 
@@ -268,30 +670,66 @@ public class ServerThread extends Thread
      */
     public void run ()
     {
-	// open input and output streams for file transfer
+	AdmissionController admission = parent.getAdmission();
+	boolean handshaking = true;
+	boolean started = false;
 	try {
-	    in = new DataInputStream(sock.getInputStream());
-	    out = new DataOutputStream(sock.getOutputStream());
-	}
-	catch (UnknownHostException e) {
-	    System.out.println ("Unknown host error.");
-	    close();
-	    return;
-	}
-	catch (IOException e) {
-	    System.out.println ("Could not create input and output streams.");
-	    close();
-	    return;
-	}
+	    // open input and output streams for file transfer
+	    try {
+		in = new DataInputStream(sock.getInputStream());
+		out = new DataOutputStream(sock.getOutputStream());
+	    }
+	    catch (UnknownHostException e) {
+		System.out.println ("Unknown host error.");
+		return;
+	    }
+	    catch (IOException e) {
+		System.out.println ("Could not create input and output streams.");
+		return;
+	    }
+
+	    // tell the client it has been admitted; from here on a client that
+	    // goes quiet must not hold its handshake slot for good
+	    try {
+		debug("Sending greeting");
+		sock.setSoTimeout(AdmissionController.HANDSHAKE_TIMEOUT_MILLIS);
+		CryptoUtilities.send(AdmissionController.GREETING_OK.getBytes(), out);
+	    }
+	    catch (IOException e) {
+		System.out.println ("Error sending greeting.");
+		return;
+	    }
+	    started = true;
 
-	// get the encryption key
-	getKey();
+	    // get the encryption key
+	    getKey();
+	    handshaking = false;
+	    admission.endHandshake();
 
-	// do file transfer
-	receiveFile();
+	    // transfers wait on disk and on other clients, so no limit there
+	    try {
+		sock.setSoTimeout(0);
+	    }
+	    catch (IOException e) {
+		System.out.println ("Could not clear the socket timeout.");
+		return;
+	    }
 
-	// shut down the client and kill the server
-	close();
-	parent.killall();
+	    // do file transfer
+	    if (key != null)
+		receiveFile();
+	}
+	finally {
+	    if (handshaking)
+		admission.endHandshake();
+	    endTransfer();
+
+	    // shut down the client, and the server unless it serves many
+	    // sessions or the client never got going
+	    close();
+	    parent.kill(this);
+	    if (!parent.isMultiSession() && started)
+		parent.killall();
+	}
     }
 }
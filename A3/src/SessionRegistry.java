@@ -0,0 +1,109 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The server's table of active connections, keyed by client id. Registering
+ * and removing a session are single map operations, so a client that
+ * disconnects never has to scan or lock the whole table. Iteration is weakly
+ * consistent: a snapshot may miss sessions added while it is taken, which is
+ * fine for a broadcast shutdown since the server stops accepting first.
+ *
+ * @param <T>
+ *            the session type
+ */
+public class SessionRegistry<T> {
+	private final ConcurrentHashMap<Integer, T> sessions = new ConcurrentHashMap<Integer, T>();
+
+	// live counters for monitoring
+	private final AtomicLong registered = new AtomicLong();
+	private final AtomicLong removed = new AtomicLong();
+
+	/**
+	 * Adds a session.
+	 *
+	 * @param id
+	 *            the client id, unique for the life of the server
+	 * @param session
+	 *            the session
+	 */
+	public void register(int id, T session) {
+		sessions.put(id, session);
+		registered.incrementAndGet();
+	}
+
+	/**
+	 * Removes a session. Removing one that is already gone does nothing.
+	 *
+	 * @param id
+	 *            the client id
+	 * @return the session, or null if it was not registered
+	 */
+	public T remove(int id) {
+		T session = sessions.remove(id);
+		if (session != null) {
+			removed.incrementAndGet();
+			if (sessions.isEmpty()) {
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * @return the sessions registered at about the time of the call
+	 */
+	public List<T> snapshot() {
+		return new ArrayList<T>(sessions.values());
+	}
+
+	/**
+	 * @return a live, weakly consistent view of the sessions
+	 */
+	public Collection<T> sessions() {
+		return sessions.values();
+	}
+
+	/**
+	 * @return number of active sessions
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * @return number of sessions ever registered
+	 */
+	public long getRegistered() {
+		return registered.get();
+	}
+
+	/**
+	 * @return number of sessions removed so far
+	 */
+	public long getRemoved() {
+		return removed.get();
+	}
+
+	/**
+	 * Waits until no sessions are left.
+	 *
+	 * @param timeoutMillis
+	 *            longest time to wait
+	 * @return true if the registry is empty
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public synchronized boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long left;
+		while (!sessions.isEmpty() && (left = deadline - System.currentTimeMillis()) > 0) {
+			wait(left);
+		}
+		return sessions.isEmpty();
+	}
+}
@@ -0,0 +1,366 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A session ticket held by a client, and the messages and key derivation of
+ * session resumption.
+ *
+ * After a full key exchange a client that proposes cipher suites may also ask
+ * for a ticket. The server seals the connection's resumption secret and an
+ * expiry time into a ticket only it can open (see TicketCache) and sends it
+ * after its choice of suite. On the next connection to the same server the
+ * client sends RESUME_HEADER, a fresh nonce and the ticket in place of the
+ * prime. If the server still accepts the ticket it answers with
+ * RESUMED_HEADER and a nonce of its own, and both sides derive the new
+ * session key from the secret and the two nonces with one HMAC-SHA256, with
+ * no modular exponentiation. Otherwise it answers FULL and the client goes on
+ * with the prime as usual. A ticket is good for one resumption; the resumed
+ * connection asks for the next one.
+ *
+ * The prime of a full exchange never starts with a zero byte followed by
+ * anything below 0x80, so the resumption messages cannot be mistaken for one.
+ *
+ * Clients keep their tickets in a small file, one per server, readable only
+ * by the user where the file system allows it.
+ */
+public class SessionTicket {
+	public static final String RESUME_HEADER = "\0RESUME ";
+	public static final String RESUMED_HEADER = "\0RESUMED ";
+	public static final String FULL = "\0FULL";
+
+	// header of the message carrying a new ticket
+	public static final String TICKET_HEADER = "\0TICKET ";
+
+	// listed with the suites to ask the server for a ticket
+	public static final String REQUEST = "TICKET";
+
+	public static final int NONCE_LEN = 16;
+	public static final int SECRET_LEN = 32;
+
+	// a ticket is not offered this close to its expiry
+	private static final long EXPIRY_MARGIN_MILLIS = 5000;
+
+	// default file name, relative to the working directory
+	public static final String DEFAULT_FILE = "tickets.bin";
+
+	// "A3TK"
+	private static final int MAGIC = 0x4133544b;
+	private static final short VERSION = 1;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	// tickets by server, loaded from the file on first use
+	private static Map<String, SessionTicket> tickets;
+	private static File file = new File(DEFAULT_FILE);
+
+	private final byte[] ticket;
+	private final byte[] secret;
+	private final long expires;
+
+	private SessionTicket(byte[] ticket, byte[] secret, long expires) {
+		this.ticket = ticket;
+		this.secret = secret;
+		this.expires = expires;
+	}
+
+	/**
+	 * Derives the secret a ticket for this session carries. It is one-way
+	 * from the session key, so a leaked ticket secret does not expose the
+	 * session it came from.
+	 *
+	 * @param key
+	 *            the session key
+	 * @return the resumption secret, SECRET_LEN bytes
+	 */
+	public static byte[] resumptionSecret(SecretKeySpec key) {
+		try {
+			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+			sha256.update("A3 resumption".getBytes());
+			return sha256.digest(key.getEncoded());
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * Derives the key of a resumed session.
+	 *
+	 * @param secret
+	 *            the resumption secret from the ticket
+	 * @param clientNonce
+	 *            the client's nonce
+	 * @param serverNonce
+	 *            the server's nonce
+	 * @return the session key
+	 */
+	public static SecretKeySpec resumedKey(byte[] secret, byte[] clientNonce, byte[] serverNonce) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+			mac.update("A3 resume".getBytes());
+			mac.update(clientNonce);
+			return CryptoUtilities.key_from_seed(mac.doFinal(serverNonce));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HMAC-SHA256 is not available", e);
+		}
+	}
+
+	/**
+	 * @return NONCE_LEN random bytes
+	 */
+	public static byte[] newNonce() {
+		byte[] nonce = new byte[NONCE_LEN];
+		random.nextBytes(nonce);
+		return nonce;
+	}
+
+	/**
+	 * @param message
+	 *            a message starting with a header
+	 * @param header
+	 *            the header
+	 * @return the rest of the message
+	 */
+	public static byte[] body(byte[] message, String header) {
+		return Arrays.copyOfRange(message, header.length(), message.length);
+	}
+
+	/**
+	 * @param clientNonce
+	 *            the client's nonce
+	 * @return the message offering this ticket, sent in place of the prime
+	 */
+	public byte[] resumeMessage(byte[] clientNonce) {
+		return ByteBuffer.allocate(RESUME_HEADER.length() + NONCE_LEN + ticket.length)
+				.put(RESUME_HEADER.getBytes()).put(clientNonce).put(ticket).array();
+	}
+
+	/**
+	 * @param offer
+	 *            a client's resume message
+	 * @return the client's nonce, or null if the message is too short
+	 */
+	public static byte[] offeredNonce(byte[] offer) {
+		int start = RESUME_HEADER.length();
+		return offer.length > start + NONCE_LEN ? Arrays.copyOfRange(offer, start, start + NONCE_LEN) : null;
+	}
+
+	/**
+	 * @param offer
+	 *            a client's resume message
+	 * @return the ticket offered, or null if the message is too short
+	 */
+	public static byte[] offeredTicket(byte[] offer) {
+		int start = RESUME_HEADER.length() + NONCE_LEN;
+		return offer.length > start ? Arrays.copyOfRange(offer, start, offer.length) : null;
+	}
+
+	/**
+	 * @param serverNonce
+	 *            the server's nonce
+	 * @return the server's reply accepting a ticket
+	 */
+	public static byte[] resumedMessage(byte[] serverNonce) {
+		return ByteBuffer.allocate(RESUMED_HEADER.length() + NONCE_LEN).put(RESUMED_HEADER.getBytes())
+				.put(serverNonce).array();
+	}
+
+	/**
+	 * @return the resumption secret
+	 */
+	public byte[] getSecret() {
+		return secret;
+	}
+
+	/**
+	 * Builds the message that hands a client a new ticket.
+	 *
+	 * @param ticket
+	 *            the sealed ticket
+	 * @param lifetimeMillis
+	 *            how long the server accepts it
+	 * @return the message, to be sent on the negotiated channel
+	 */
+	public static byte[] ticketMessage(byte[] ticket, long lifetimeMillis) {
+		return ByteBuffer.allocate(TICKET_HEADER.length() + 8 + ticket.length).put(TICKET_HEADER.getBytes())
+				.putLong(lifetimeMillis).put(ticket).array();
+	}
+
+	/**
+	 * Reads a ticket sent by the server.
+	 *
+	 * @param message
+	 *            the server's ticket message
+	 * @param secret
+	 *            the resumption secret of this session
+	 * @return the ticket, or null if the message is not a ticket
+	 */
+	public static SessionTicket fromMessage(byte[] message, byte[] secret) {
+		if (!CryptoUtilities.startsWith(message, TICKET_HEADER) || message.length < TICKET_HEADER.length() + 8) {
+			return null;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(message, TICKET_HEADER.length(), message.length - TICKET_HEADER.length());
+		long lifetime = buf.getLong();
+		byte[] ticket = new byte[buf.remaining()];
+		buf.get(ticket);
+		return new SessionTicket(ticket, secret, System.currentTimeMillis() + lifetime);
+	}
+
+	/**
+	 * Uses a different ticket file, e.g. for tests.
+	 *
+	 * @param ticketFile
+	 *            the file, or null to keep tickets in memory only
+	 */
+	public static synchronized void setFile(File ticketFile) {
+		file = ticketFile;
+		tickets = null;
+	}
+
+	/**
+	 * Removes and returns the ticket for a server. A ticket is only good for
+	 * one connection, so it is never handed out twice.
+	 *
+	 * @param server
+	 *            host and port of the server
+	 * @return the ticket, or null if there is none that is still valid
+	 */
+	public static synchronized SessionTicket take(String server) {
+		load();
+		SessionTicket t = tickets.remove(server);
+		if (t != null) {
+			save();
+		}
+		if (t == null || t.expires - EXPIRY_MARGIN_MILLIS < System.currentTimeMillis()) {
+			return null;
+		}
+		return t;
+	}
+
+	/**
+	 * Keeps a ticket for a server, replacing any older one.
+	 *
+	 * @param server
+	 *            host and port of the server
+	 * @param t
+	 *            the ticket
+	 */
+	public static synchronized void put(String server, SessionTicket t) {
+		load();
+		tickets.put(server, t);
+		save();
+	}
+
+	/**
+	 * Reads the ticket file, dropping expired tickets.
+	 */
+	private static void load() {
+		if (tickets != null) {
+			return;
+		}
+		tickets = new HashMap<String, SessionTicket>();
+		if (file == null || !file.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+				System.out.println("Ignoring unrecognized ticket file " + file + ".");
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String server = in.readUTF();
+				long expires = in.readLong();
+				byte[] secret = new byte[SECRET_LEN];
+				in.readFully(secret);
+				byte[] ticket = new byte[in.readShort() & 0xffff];
+				in.readFully(ticket);
+				tickets.put(server, new SessionTicket(ticket, secret, expires));
+			}
+		} catch (IOException e) {
+			System.out.println("Could not read ticket file " + file + ".");
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// nothing left to release
+				}
+			}
+		}
+		long now = System.currentTimeMillis();
+		Iterator<SessionTicket> it = tickets.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expires < now) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Writes the tickets to a new file and moves it over the old one, so a
+	 * crash never leaves a half-written file behind.
+	 */
+	private static void save() {
+		if (file == null) {
+			return;
+		}
+		File dir = file.getAbsoluteFile().getParentFile();
+		Path temp = null;
+		DataOutputStream out = null;
+		try {
+			temp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp");
+			try {
+				Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+			} catch (UnsupportedOperationException e) {
+				// not a POSIX file system, keep the default permissions
+			}
+			out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(tickets.size());
+			for (Map.Entry<String, SessionTicket> e : tickets.entrySet()) {
+				SessionTicket t = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeLong(t.expires);
+				out.write(t.secret);
+				out.writeShort(t.ticket.length);
+				out.write(t.ticket);
+			}
+			out.close();
+			out = null;
+			Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			temp = null;
+		} catch (IOException e) {
+			System.out.println("Could not write ticket file " + file + ".");
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// already failed
+				}
+			}
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException e) {
+					// left for the next save to replace
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,191 @@
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The server's side of session resumption. Tickets are sealed with a key
+ * that never leaves the server: the ticket id, its expiry time and the
+ * resumption secret are encrypted with AES-CBC, then an HMAC-SHA1 of the
+ * ciphertext is appended, so a forged or altered ticket is turned away
+ * before anything is decrypted.
+ *
+ * The cache remembers the id and expiry of every ticket that may still be
+ * redeemed. Redeeming removes the id, so a ticket seen on the wire cannot be
+ * replayed; expired ids are dropped as new ones are issued, and past
+ * maxTickets the oldest outstanding ticket is given up. The ticket key lives
+ * only as long as the server, so a restart turns every outstanding ticket
+ * away and those clients do a full exchange.
+ */
+public class TicketCache {
+	public static final long DEFAULT_LIFETIME_MILLIS = 60 * 60 * 1000;
+	public static final int DEFAULT_MAX_TICKETS = 10000;
+
+	// sealed: id, expiry and secret
+	private static final int PLAIN_LEN = 8 + 8 + SessionTicket.SECRET_LEN;
+
+	private final SecretKeySpec ticketKey;
+	private final long lifetimeMillis;
+	private final int maxTickets;
+	private final SecureRandom random = new SecureRandom();
+
+	// outstanding ticket ids and their expiry, oldest first, guarded by this
+	private final LinkedHashMap<Long, Long> outstanding = new LinkedHashMap<Long, Long>();
+	private long nextId;
+
+	// live counters for monitoring
+	private final AtomicLong issued = new AtomicLong();
+	private final AtomicLong resumed = new AtomicLong();
+	private final AtomicLong refused = new AtomicLong();
+
+	/**
+	 * Constructor, with the default lifetime and size.
+	 */
+	public TicketCache() {
+		this(DEFAULT_LIFETIME_MILLIS, DEFAULT_MAX_TICKETS);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param lifetimeMillis
+	 *            how long a ticket may be redeemed after it is issued
+	 * @param maxTickets
+	 *            tickets outstanding at once
+	 */
+	public TicketCache(long lifetimeMillis, int maxTickets) {
+		if (lifetimeMillis < 1 || maxTickets < 1) {
+			throw new IllegalArgumentException("Ticket lifetime and cache size must be positive");
+		}
+		this.lifetimeMillis = lifetimeMillis;
+		this.maxTickets = maxTickets;
+		byte[] k = new byte[CryptoUtilities.AES_KEY_LEN];
+		random.nextBytes(k);
+		ticketKey = new SecretKeySpec(k, "AES");
+		nextId = random.nextLong();
+	}
+
+	/**
+	 * @return how long a ticket may be redeemed after it is issued
+	 */
+	public long getLifetimeMillis() {
+		return lifetimeMillis;
+	}
+
+	/**
+	 * Issues a ticket for a session.
+	 *
+	 * @param key
+	 *            the session key
+	 * @return the message carrying the ticket, to be sent on the negotiated
+	 *         channel
+	 */
+	public byte[] issue(SecretKeySpec key) {
+		long id;
+		long expires = System.currentTimeMillis() + lifetimeMillis;
+		synchronized (this) {
+			purge();
+			if (outstanding.size() >= maxTickets) {
+				Iterator<Long> it = outstanding.keySet().iterator();
+				it.next();
+				it.remove();
+			}
+			id = nextId++;
+			outstanding.put(id, expires);
+		}
+		byte[] plain = ByteBuffer.allocate(PLAIN_LEN).putLong(id).putLong(expires)
+				.put(SessionTicket.resumptionSecret(key)).array();
+		byte[] ticket = CryptoUtilities.append_hash(CryptoUtilities.encrypt(plain, ticketKey), ticketKey);
+		issued.incrementAndGet();
+		return SessionTicket.ticketMessage(ticket, lifetimeMillis);
+	}
+
+	/**
+	 * Redeems a ticket. It cannot be redeemed again.
+	 *
+	 * @param ticket
+	 *            the ticket offered by a client
+	 * @return the resumption secret, or null if the ticket is forged,
+	 *         expired or already used
+	 */
+	public byte[] redeem(byte[] ticket) {
+		ByteBuffer plain = open(ticket);
+		if (plain == null) {
+			refused.incrementAndGet();
+			return null;
+		}
+		long id = plain.getLong();
+		long expires = plain.getLong();
+		Long known;
+		synchronized (this) {
+			known = outstanding.remove(id);
+		}
+		if (known == null || known.longValue() != expires || expires < System.currentTimeMillis()) {
+			refused.incrementAndGet();
+			return null;
+		}
+		byte[] secret = new byte[SessionTicket.SECRET_LEN];
+		plain.get(secret);
+		resumed.incrementAndGet();
+		return secret;
+	}
+
+	/**
+	 * Checks and decrypts a ticket.
+	 */
+	private ByteBuffer open(byte[] ticket) {
+		if (ticket.length <= CryptoUtilities.HMAC_SHA1_LEN + CryptoUtilities.AES_PARAM_LEN
+				|| !CryptoUtilities.verify_hash(ticket, ticketKey)) {
+			return null;
+		}
+		byte[] plain = CryptoUtilities.decrypt(ticket, ticket.length - CryptoUtilities.HMAC_SHA1_LEN, ticketKey);
+		if (plain == null || plain.length != PLAIN_LEN) {
+			return null;
+		}
+		return ByteBuffer.wrap(plain);
+	}
+
+	/**
+	 * Drops expired ids from the front. Tickets all live equally long, so
+	 * the ids are in order of expiry. Caller holds the lock.
+	 */
+	private void purge() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<Long, Long>> it = outstanding.entrySet().iterator();
+		while (it.hasNext() && it.next().getValue() < now) {
+			it.remove();
+		}
+	}
+
+	/**
+	 * @return number of tickets that may still be redeemed
+	 */
+	public synchronized int size() {
+		purge();
+		return outstanding.size();
+	}
+
+	/**
+	 * @return number of tickets issued
+	 */
+	public long getIssued() {
+		return issued.get();
+	}
+
+	/**
+	 * @return number of connections resumed with a ticket
+	 */
+	public long getResumed() {
+		return resumed.get();
+	}
+
+	/**
+	 * @return number of tickets turned away
+	 */
+	public long getRefused() {
+		return refused.get();
+	}
+}
@@ -0,0 +1,78 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import javax.crypto.KeyAgreement;
+
+/**
+ * X25519 key agreement (RFC 7748) from the JDK's XDH provider, available from
+ * Java 11. Public values go on the wire as the raw 32 byte u-coordinate; the
+ * JDK only takes and gives them wrapped in an X.509 SubjectPublicKeyInfo,
+ * whose fixed prefix is added and removed here. The shared secret is the raw
+ * 32 byte X25519 output. A peer value of small order gives an all-zero
+ * secret, which the provider refuses, and is reported as not valid.
+ *
+ * Only algorithm names are used, so the class compiles on any JDK and
+ * isAvailable() says whether this one can run it.
+ */
+public class X25519KeyExchange implements KeyExchange {
+	public static final String NAME = "x25519";
+
+	public static final int KEY_LEN = 32;
+
+	// DER SubjectPublicKeyInfo header for an X25519 key (OID 1.3.101.110)
+	private static final byte[] SPKI_PREFIX = { 0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00 };
+
+	private static final boolean available = check();
+
+	private KeyPair pair; // chosen by publicValue()
+
+	/**
+	 * @return true if this JVM has X25519
+	 */
+	public static boolean isAvailable() {
+		return available;
+	}
+
+	private static boolean check() {
+		try {
+			KeyPairGenerator.getInstance("X25519");
+			KeyAgreement.getInstance("X25519");
+			return true;
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	public byte[] publicValue() {
+		try {
+			if (pair == null) {
+				pair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+			}
+			byte[] spki = pair.getPublic().getEncoded();
+			return Arrays.copyOfRange(spki, SPKI_PREFIX.length, spki.length);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("X25519 is not available", e);
+		}
+	}
+
+	public byte[] agree(byte[] peerPublic) {
+		if (pair == null || peerPublic.length != KEY_LEN) {
+			return null;
+		}
+		try {
+			byte[] spki = Arrays.copyOf(SPKI_PREFIX, SPKI_PREFIX.length + KEY_LEN);
+			System.arraycopy(peerPublic, 0, spki, SPKI_PREFIX.length, KEY_LEN);
+			PublicKey peer = KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(spki));
+			KeyAgreement ka = KeyAgreement.getInstance("X25519");
+			ka.init(pair.getPrivate());
+			ka.doPhase(peer, true);
+			return ka.generateSecret();
+		} catch (GeneralSecurityException e) {
+			return null;
+		}
+	}
+}